@@ -1,5 +1,6 @@
 package edu.wisc.cs.sdn.vnet;
 
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -100,6 +101,15 @@ public abstract class Device
 	public Iface getInterface(String ifaceName)
 	{ return this.interfaces.get(ifaceName); }
 	
+	/**
+	 * Called once the device's interfaces have been added and given their
+	 * addresses. Devices that keep state derived from their interfaces
+	 * override this to set it up here, rather than checking it for every
+	 * packet.
+	 */
+	public void interfacesConfigured()
+	{ }
+	
 	/**
 	 * Send an Ethernet packet out a specific interface.
 	 * @param etherPacket an Ethernet packet with all fields, encapsulated
@@ -110,5 +120,30 @@ public abstract class Device
 	public boolean sendPacket(Ethernet etherPacket, Iface iface)
 	{ return this.vnsComm.sendPacket(etherPacket, iface.getName()); }
 	
+	/**
+	 * Send a raw Ethernet frame out a specific interface. If the bytes 
+	 * before the frame's position are free, the frame is sent without 
+	 * being copied.
+	 * @param frame buffer holding the frame between its position and limit
+	 * @param iface interface on which to send the frame
+	 * @return true if the frame was sent successfully, otherwise false
+	 */
+	public boolean sendFrame(ByteBuffer frame, Iface iface)
+	{ return this.vnsComm.sendFrame(frame, iface.getName()); }
+	
+	/**
+	 * Handle a raw Ethernet frame before it is decoded into packet objects.
+	 * Devices that can process some frames by editing their bytes override
+	 * this; frames it declines are decoded and passed to handlePacket.
+	 * @param frame buffer holding the frame between its position and limit;
+	 *        the frame may be modified and passed to sendFrame only if this
+	 *        method returns true
+	 * @param inIface the interface on which the frame was received
+	 * @return true if the frame was fully handled, false if it should be 
+	 *         decoded and passed to handlePacket unchanged
+	 */
+	public boolean handleFrame(ByteBuffer frame, Iface inIface)
+	{ return false; }
+	
 	public abstract void handlePacket(Ethernet etherPacket, Iface inIface);
 }
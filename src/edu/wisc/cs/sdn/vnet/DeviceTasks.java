@@ -0,0 +1,168 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the background work of every device in the JVM. Periodic work (RIP
+ * updates, expiry sweeps, the timing wheel that fires ARP retries) shares
+ * one small scheduler instead of each owning a sleeping thread or a Timer, and
+ * long-running loops (writing to the server, handling packets) get threads
+ * from here too. Once virtual threads are enabled, all of these run on
+ * virtual threads, so many devices in one JVM do not each hold several OS
+ * threads.
+ */
+public class DeviceTasks
+{
+	/** Threads running scheduled work */
+	private static final int SCHEDULER_THREADS = 2;
+
+	/** Makes virtual threads; null if the JVM has none */
+	private static final ThreadFactory VIRTUAL_FACTORY = virtualFactory();
+
+	/** Set once devices should run on virtual threads */
+	private static volatile boolean virtual;
+
+	/** Runs scheduled work; created when first used */
+	private static ScheduledThreadPoolExecutor scheduler;
+
+	/** Numbers the threads made for the scheduler */
+	private static final AtomicInteger schedulerThreads = new AtomicInteger();
+
+	/**
+	 * Run device threads and scheduled work on virtual threads. Must be
+	 * called before any device work is scheduled.
+	 * @return false if the JVM does not support virtual threads, in which
+	 *         case platform threads are used
+	 */
+	public static boolean useVirtualThreads()
+	{
+		if (null == VIRTUAL_FACTORY)
+		{ return false; }
+		virtual = true;
+		return true;
+	}
+
+	/**
+	 * @return true if device threads are virtual threads
+	 */
+	public static boolean isVirtual()
+	{ return virtual; }
+
+	/**
+	 * Create a thread for a long-running device loop. The thread is not
+	 * started, and never keeps the JVM running.
+	 * @param name name of the thread
+	 * @param task loop the thread runs
+	 * @return a virtual thread if enabled, otherwise a daemon platform
+	 *         thread
+	 */
+	public static Thread newThread(String name, Runnable task)
+	{
+		Thread thread;
+		if (virtual)
+		{ thread = VIRTUAL_FACTORY.newThread(task); }
+		else
+		{
+			thread = new Thread(task);
+			thread.setDaemon(true);
+		}
+		thread.setName(name);
+		return thread;
+	}
+
+	/**
+	 * Run a task repeatedly at a fixed rate, until it is cancelled. A run
+	 * that throws is logged and does not stop later runs.
+	 * @param task work to run; should not block for long
+	 * @param initialDelay how long to wait before the first run
+	 * @param period time between the starts of runs
+	 * @param unit unit of both times
+	 * @return handle to cancel the task with
+	 */
+	public static ScheduledFuture<?> scheduleAtFixedRate(Runnable task,
+			long initialDelay, long period, TimeUnit unit)
+	{
+		return scheduler().scheduleAtFixedRate(guard(task), initialDelay,
+				period, unit);
+	}
+
+	/**
+	 * Run a task repeatedly, with a fixed delay between the end of one run
+	 * and the start of the next, until it is cancelled. A run that throws
+	 * is logged and does not stop later runs.
+	 * @param task work to run; should not block for long
+	 * @param initialDelay how long to wait before the first run
+	 * @param delay how long to wait between runs
+	 * @param unit unit of both delays
+	 * @return handle to cancel the task with
+	 */
+	public static ScheduledFuture<?> scheduleWithFixedDelay(Runnable task,
+			long initialDelay, long delay, TimeUnit unit)
+	{
+		return scheduler().scheduleWithFixedDelay(guard(task), initialDelay,
+				delay, unit);
+	}
+
+	private static synchronized ScheduledThreadPoolExecutor scheduler()
+	{
+		if (null == scheduler)
+		{
+			scheduler = new ScheduledThreadPoolExecutor(SCHEDULER_THREADS,
+					new ThreadFactory() {
+						public Thread newThread(Runnable task)
+						{
+							return DeviceTasks.newThread("device-tasks-"
+									+ schedulerThreads.getAndIncrement(), task);
+						}
+					});
+			// Cancelled sweeps should not linger in the queue
+			scheduler.setRemoveOnCancelPolicy(true);
+		}
+		return scheduler;
+	}
+
+	/**
+	 * Catch what a task throws, so one failure neither kills a scheduler
+	 * thread nor silently cancels a periodic task.
+	 */
+	private static Runnable guard(final Runnable task)
+	{
+		return new Runnable() {
+			public void run()
+			{
+				try
+				{ task.run(); }
+				catch (RuntimeException e)
+				{
+					Log.error("Error in device task: " + e);
+					e.printStackTrace();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Look up Thread.ofVirtual().factory() by reflection, so the code still
+	 * builds and runs on JVMs without virtual threads.
+	 */
+	private static ThreadFactory virtualFactory()
+	{
+		try
+		{
+			Method ofVirtual = Thread.class.getMethod("ofVirtual");
+			Object builder = ofVirtual.invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder")
+				.getMethod("factory");
+			return (ThreadFactory)factory.invoke(builder);
+		}
+		catch (ReflectiveOperationException e)
+		{ return null; }
+		catch (RuntimeException e)
+		{ return null; }
+	}
+}
@@ -0,0 +1,249 @@
+package edu.wisc.cs.sdn.vnet;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Leveled log shared by all parts of a device. Messages are put in a
+ * lock-free ring buffer and written by a background thread, so threads
+ * handling packets never wait on the console. If the buffer is full, the
+ * message is dropped and counted instead of blocking the caller.
+ *
+ * Call sites on the packet path should check {@link #isDebugEnabled()} or
+ * {@link #isTraceEnabled()} before building a message, so a disabled level
+ * costs a single field read.
+ */
+public class Log
+{
+	/** Severity of a message; each level includes those before it */
+	public enum Level { ERROR, WARN, INFO, DEBUG, TRACE }
+
+	/** Destination for messages taken off the buffer */
+	public interface Sink
+	{
+		/**
+		 * Write a message. Only called from the log's writer thread.
+		 * @param level severity of the message
+		 * @param message the message
+		 */
+		void write(Level level, String message);
+	}
+
+	/** Writes errors and warnings to stderr and everything else to stdout */
+	public static final Sink CONSOLE = new Sink() {
+		public void write(Level level, String message)
+		{
+			if (level.compareTo(Level.WARN) <= 0)
+			{ System.err.println(message); }
+			else
+			{ System.out.println(message); }
+		}
+	};
+
+	/** Ordinals of the levels checked on the packet path */
+	private static final int DEBUG = Level.DEBUG.ordinal();
+	private static final int TRACE = Level.TRACE.ordinal();
+
+	/** Number of messages the buffer holds; a power of two */
+	private static final int CAPACITY = 1 << 13;
+
+	/** How long the writer sleeps when the buffer is empty */
+	private static final long IDLE_NANOS = 1000000;
+
+	/** How long flush waits for the writer before giving up */
+	private static final long FLUSH_TIMEOUT_NANOS = 1000000000L;
+
+	/** Most verbose level written; stored as an ordinal for a cheap check */
+	private static volatile int threshold = Level.INFO.ordinal();
+
+	/** Where messages are written */
+	private static volatile Sink sink = CONSOLE;
+
+	/** Slots of the ring buffer. A slot's sequence is its position plus one
+	 *  once a message is in it, and its position plus the capacity once
+	 *  the message has been taken, so producers and the writer never need
+	 *  a lock. */
+	private static final AtomicLongArray sequences =
+			new AtomicLongArray(CAPACITY);
+	private static final Level[] levels = new Level[CAPACITY];
+	private static final String[] messages = new String[CAPACITY];
+
+	/** Next position producers claim */
+	private static final AtomicLong tail = new AtomicLong();
+
+	/** Next position the writer takes; only changed by the writer */
+	private static volatile long head;
+
+	/** Number of messages dropped because the buffer was full */
+	private static final AtomicLong dropped = new AtomicLong();
+
+	static
+	{
+		for (int i = 0; i < CAPACITY; i++)
+		{ sequences.set(i, i); }
+
+		Thread writer = new Thread(new Runnable() {
+			public void run()
+			{ drain(); }
+		}, "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+
+		// Write out anything still buffered when the program exits
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run()
+			{ flush(); }
+		}));
+	}
+
+	private Log()
+	{ }
+
+	/**
+	 * @param level most verbose level to write
+	 */
+	public static void setLevel(Level level)
+	{ threshold = level.ordinal(); }
+
+	/**
+	 * @return most verbose level written
+	 */
+	public static Level getLevel()
+	{ return Level.values()[threshold]; }
+
+	/**
+	 * @param sink destination for messages
+	 */
+	public static void setSink(Sink sink)
+	{ Log.sink = sink; }
+
+	/**
+	 * @return number of messages dropped because the buffer was full
+	 */
+	public static long getDropped()
+	{ return dropped.get(); }
+
+	/**
+	 * @return true if messages of a level are written
+	 */
+	public static boolean isEnabled(Level level)
+	{ return level.ordinal() <= threshold; }
+
+	/**
+	 * @return true if debug messages are written
+	 */
+	public static boolean isDebugEnabled()
+	{ return threshold >= DEBUG; }
+
+	/**
+	 * @return true if trace messages are written
+	 */
+	public static boolean isTraceEnabled()
+	{ return threshold >= TRACE; }
+
+	public static void error(String message)
+	{ log(Level.ERROR, message); }
+
+	public static void warn(String message)
+	{ log(Level.WARN, message); }
+
+	public static void info(String message)
+	{ log(Level.INFO, message); }
+
+	public static void debug(String message)
+	{ log(Level.DEBUG, message); }
+
+	public static void trace(String message)
+	{ log(Level.TRACE, message); }
+
+	/**
+	 * Queue a message for writing, if its level is enabled.
+	 * @param level severity of the message
+	 * @param message the message
+	 */
+	public static void log(Level level, String message)
+	{
+		if (level.ordinal() > threshold)
+		{ return; }
+
+		// Claim a free slot; give up if the writer has fallen a lap behind
+		long pos = tail.get();
+		while (true)
+		{
+			long diff = sequences.get((int)pos & (CAPACITY - 1)) - pos;
+			if (0 == diff)
+			{
+				if (tail.compareAndSet(pos, pos + 1))
+				{ break; }
+				pos = tail.get();
+			}
+			else if (diff < 0)
+			{
+				dropped.incrementAndGet();
+				return;
+			}
+			else
+			{ pos = tail.get(); }
+		}
+
+		int slot = (int)pos & (CAPACITY - 1);
+		levels[slot] = level;
+		messages[slot] = message;
+		sequences.lazySet(slot, pos + 1);
+	}
+
+	/**
+	 * Wait, for at most a second, until every message queued so far has
+	 * been written.
+	 */
+	public static void flush()
+	{
+		long target = tail.get();
+		long deadline = System.nanoTime() + FLUSH_TIMEOUT_NANOS;
+		while (head < target && System.nanoTime() < deadline)
+		{ LockSupport.parkNanos(IDLE_NANOS / 10); }
+	}
+
+	/**
+	 * Write messages as they arrive. Runs on the writer thread.
+	 */
+	private static void drain()
+	{
+		long reportedDrops = 0;
+		while (true)
+		{
+			long pos = head;
+			int slot = (int)pos & (CAPACITY - 1);
+			if (sequences.get(slot) != pos + 1)
+			{
+				// Report drops once the buffer has room again
+				long drops = dropped.get();
+				if (drops != reportedDrops)
+				{
+					write(Level.WARN, String.format(
+							"Log buffer full, dropped %d messages",
+							drops - reportedDrops));
+					reportedDrops = drops;
+				}
+				LockSupport.parkNanos(IDLE_NANOS);
+				continue;
+			}
+
+			Level level = levels[slot];
+			String message = messages[slot];
+			messages[slot] = null;
+			sequences.lazySet(slot, pos + CAPACITY);
+			write(level, message);
+			head = pos + 1;
+		}
+	}
+
+	private static void write(Level level, String message)
+	{
+		try
+		{ sink.write(level, message); }
+		catch (RuntimeException e)
+		{ e.printStackTrace(); }
+	}
+}
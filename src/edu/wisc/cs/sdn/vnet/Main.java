@@ -1,15 +1,19 @@
 package edu.wisc.cs.sdn.vnet;
 
+import edu.wisc.cs.sdn.vnet.rt.ArpQO;
 import edu.wisc.cs.sdn.vnet.rt.Router;
 import edu.wisc.cs.sdn.vnet.sw.Switch;
 import edu.wisc.cs.sdn.vnet.vns.Command;
+import edu.wisc.cs.sdn.vnet.vns.PacketPipeline;
 import edu.wisc.cs.sdn.vnet.vns.VNSComm;
+import net.floodlightcontroller.packet.BasePacket;
 import net.floodlightcontroller.packet.IPv4;
 
 public class Main 
 {
 	private static final short DEFAULT_PORT = 8888;
 	private static final String DEFAULT_SERVER = "localhost";
+	private static final int DEFAULT_WORKER_QUEUE_DEPTH = 1024;
 	
 	public static void main(String[] args)
 	{
@@ -17,7 +21,17 @@ public class Main
 		String server = DEFAULT_SERVER;
 		String routeTableFile = null;
 		String arpCacheFile = null;
+		String snapshotFile = null;
 		String logfile = null;
+		boolean directIndexed = false;
+		boolean virtualThreads = false;
+		Log.Level logLevel = Log.Level.INFO;
+		int workers = 0;
+		int workerQueueDepth = 0;
+		int writeQueueDepth = 0;
+		PacketPipeline.Overflow overflow = PacketPipeline.Overflow.BLOCK;
+		ArpQO.DropPolicy arpDropPolicy = null;
+		int arpTimeout = -1;
 		short port = DEFAULT_PORT;
 		VNSComm vnsComm = null;
 		Device dev = null;
@@ -43,6 +57,67 @@ public class Main
 			{ routeTableFile = args[++i]; }
 			else if (arg.equals("-a"))
 			{ arpCacheFile = args[++i]; }
+			else if (arg.equals("-b"))
+			{ snapshotFile = args[++i]; }
+			else if (arg.equals("-z"))
+			{ BasePacket.setLazyDecoding(true); }
+			else if (arg.equals("-V"))
+			{ virtualThreads = true; }
+			else if (arg.equals("-n"))
+			{ workers = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-q"))
+			{ workerQueueDepth = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-w"))
+			{ writeQueueDepth = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-Q"))
+			{
+				try
+				{
+					overflow = PacketPipeline.Overflow.valueOf(
+							args[++i].toUpperCase());
+				}
+				catch (IllegalArgumentException e)
+				{
+					usage();
+					return;
+				}
+			}
+			else if (arg.equals("-t"))
+			{ arpTimeout = Integer.parseInt(args[++i]); }
+			else if (arg.equals("-P"))
+			{
+				try
+				{
+					arpDropPolicy = ArpQO.DropPolicy.valueOf(
+							args[++i].toUpperCase());
+				}
+				catch (IllegalArgumentException e)
+				{
+					usage();
+					return;
+				}
+			}
+			else if (arg.equals("-L"))
+			{
+				try
+				{ logLevel = Log.Level.valueOf(args[++i].toUpperCase()); }
+				catch (IllegalArgumentException e)
+				{
+					usage();
+					return;
+				}
+			}
+			else if (arg.equals("-f"))
+			{
+				String mode = args[++i];
+				if (mode.equals("dir24"))
+				{ directIndexed = true; }
+				else if (!mode.equals("trie"))
+				{
+					usage();
+					return;
+				}
+			}
 		}
 		
 		if (null == host)
@@ -50,6 +125,11 @@ public class Main
 			usage();
 			return;
 		}
+		Log.setLevel(logLevel);
+		
+		// Run device threads and timers on virtual threads if we can
+		if (virtualThreads && !DeviceTasks.useVirtualThreads())
+		{ Log.warn("Virtual threads are not available, using platform threads"); }
 		
 		// Open PCAP dump file for logging packets sent/received by the router
 		DumpFile dump = null;
@@ -77,20 +157,45 @@ public class Main
 		}
 		
 		// Connect to Virtual Network Simulator server and negotiate session
-		System.out.println(String.format("Connecting to server %s:%d", 
+		Log.info(String.format("Connecting to server %s:%d", 
 				server, port));
 		vnsComm = new VNSComm(dev);
+		if (writeQueueDepth > 0)
+		{ vnsComm.setWriteQueueDepth(writeQueueDepth); }
 		if (!vnsComm.connectToServer(port, server))
 		{ System.exit(1); }
 		vnsComm.readFromServerExpect(Command.VNS_HW_INFO);	
 		
 		if (dev instanceof Router) 
 		{
+			// Choose the route lookup structure before loading routes; the
+			// direct-indexed table is rebuilt on every change, so it is only
+			// worth it for a static route table, not one RIP keeps updating
+			if (directIndexed && null == routeTableFile)
+			{ 
+				Log.warn("-f dir24 needs a static route table (-r), "
+						+ "using the trie for RIP");
+			}
+			else if (directIndexed)
+			{ ((Router)dev).getRouteTable().setDirectIndexed(true); }
+			
+			// Keep learned ARP entries for the chosen time
+			if (arpTimeout >= 0)
+			{ ((Router)dev).getArpCache().setTimeout(arpTimeout * 1000L); }
+			
+			// Choose which packets to drop while waiting for ARP replies
+			if (arpDropPolicy != null)
+			{ ((Router)dev).getArpQueue().setDropPolicy(arpDropPolicy); }
+			
+			// Keep a binary snapshot of the route table for fast restarts
+			if (snapshotFile != null)
+			{ ((Router)dev).setRouteTableSnapshot(snapshotFile); }
+			
 			// Read static route table
 			if (routeTableFile != null) { 
 			    ((Router)dev).loadRouteTable(routeTableFile, true); 
 			} else {
-			    System.out.println("Creating our own route table");
+			    Log.info("Creating our own route table");
 			    String routeTable = initalizeRouteTable((Router)dev);
 			    ((Router)dev).loadRouteTable(routeTable, false); 
 			}
@@ -100,9 +205,33 @@ public class Main
 			{ ((Router)dev).loadArpCache(arpCacheFile); }
 		}
 
+		// Handle packets on worker threads, so reading never waits on them
+		if (workers > 0 || workerQueueDepth > 0)
+		{
+			vnsComm.startPipeline(Math.max(workers, 1), 
+					(workerQueueDepth > 0) ? workerQueueDepth 
+						: DEFAULT_WORKER_QUEUE_DEPTH, 
+					overflow);
+		}
+
 		// Read messages from the server until the server closes the connection
-		System.out.println("<-- Ready to process packets -->");
-		while (vnsComm.readFromServer());
+		Log.info("<-- Ready to process packets -->");
+		if (DeviceTasks.isVirtual())
+		{
+			final VNSComm reader = vnsComm;
+			Thread readerThread = DeviceTasks.newThread("vns-reader", 
+					new Runnable() {
+						public void run()
+						{ while (reader.readFromServer()); }
+					});
+			readerThread.start();
+			try
+			{ readerThread.join(); }
+			catch (InterruptedException e)
+			{ }
+		}
+		else
+		{ while (vnsComm.readFromServer()); }
 		
 		// Shutdown the router
 		dev.destroy();
@@ -128,6 +257,10 @@ public class Main
 		System.out.println("Virtual Network Client");
 		System.out.println("VNet -v host [-s server] [-p port] [-h]");
 		System.out.println("     [-r routing_table] [-a arp_cache] [-l log_file]");
+		System.out.println("     [-f trie|dir24] [-b route_table_snapshot]");
+		System.out.println("     [-L error|warn|info|debug|trace] [-z] [-V]");
+		System.out.println("     [-n workers] [-q worker_queue_depth] [-Q drop|block]");
+		System.out.println("     [-w write_queue_depth] [-P tail|oldest] [-t arp_timeout]");
 		System.out.println(String.format("  defaults server=%s port=%d", 
 				DEFAULT_SERVER, DEFAULT_PORT));
 	}
@@ -4,28 +4,85 @@ import java.io.BufferedReader;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import edu.wisc.cs.sdn.vnet.Iface;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
 /**
  * A cache of MAC address to IP address mappings.
+ *
+ * Learned mappings expire after a timeout. Shortly before a mapping that
+ * is in use expires, the router is asked to refresh it with a unicast
+ * request, so forwarding does not stall while the address is resolved
+ * again. Addresses that did not answer are remembered for a short time,
+ * so packets for a dead next hop can be refused at once instead of each
+ * starting another round of requests.
+ *
+ * Mappings are kept in a table keyed by primitive IP addresses with MAC
+ * addresses packed into longs, so looking up a next hop for a packet takes
+ * no lock and allocates nothing.
  * @author Aaron Gember-Jacobson
  */
 public class ArpCache
 {		
-    /** Entries in the cache; maps an IP address to an entry */
-    private Map<Integer,ArpEntry> entries;
+    /** Default time (in milliseconds) learned mappings are kept */
+    public static final long TIMEOUT = 60 * 1000;
+
+    /** Time (in milliseconds) before expiry that used mappings are 
+     *  refreshed */
+    public static final long REFRESH_TIME = 5 * 1000;
+
+    /** Default time (in milliseconds) addresses that did not answer are
+     *  remembered */
+    public static final long NEGATIVE_TIMEOUT = 5 * 1000;
+
+    /** Value returned by {@link #lookupMac(int)} if no mapping exists */
+    public static final long NO_MAC = ArpTable.NONE;
+
+    /** Entries in the cache; maps an IP address to a MAC address */
+    private ArpTable entries;
+
+    /** Addresses that did not answer; maps an IP address to the time (in
+     *  milliseconds since the epoch) it is forgotten */
+    private Map<Integer,Long> unreachable;
+
+    /** Time (in milliseconds) learned mappings are kept; 0 keeps them 
+     *  forever */
+    private volatile long timeout = TIMEOUT;
+
+    /** Time (in milliseconds) addresses that did not answer are 
+     *  remembered; 0 forgets them at once */
+    private volatile long negativeTimeout = NEGATIVE_TIMEOUT;
 
     /**
      * Initializes an empty ARP cache for a router.
      */
     public ArpCache()
-    { this.entries = new ConcurrentHashMap<Integer,ArpEntry>(); }
+    { 
+	this.entries = new ArpTable(); 
+	this.unreachable = new ConcurrentHashMap<Integer,Long>();
+    }
+
+    /**
+     * @param timeout time (in milliseconds) learned mappings are kept; 0
+     *        keeps them forever
+     */
+    public void setTimeout(long timeout)
+    { this.timeout = timeout; }
+
+    /**
+     * @param negativeTimeout time (in milliseconds) addresses that did not
+     *        answer are remembered; 0 forgets them at once
+     */
+    public void setNegativeTimeout(long negativeTimeout)
+    { this.negativeTimeout = negativeTimeout; }
 
     /**
      * Insert an entry in the ARP cache for a specific IP address, MAC address
@@ -34,16 +91,123 @@ public class ArpCache
      * @param ip IP address corresponding to MAC address
      */
     public void insert(MACAddress mac, int ip)
-    { this.entries.put(ip, new ArpEntry(mac, ip)); }
+    { this.insert(mac, ip, null); }
 
     /**
-     * Checks if an IP->MAC mapping is the in the cache.
+     * Insert an entry learned on an interface. Only mappings whose 
+     * interface is known are refreshed before they expire.
+     * @param mac MAC address corresponding to IP address
+     * @param ip IP address corresponding to MAC address
+     * @param iface interface the mapping was learned on
+     */
+    public void insert(MACAddress mac, int ip, Iface iface)
+    { 
+	this.entries.put(ip, mac.toLong(), false, iface); 
+	this.unreachable.remove(ip);
+    }
+
+    /**
+     * Insert an entry that never expires, such as a static entry or one
+     * for the router's own interface.
+     * @param mac MAC address corresponding to IP address
+     * @param ip IP address corresponding to MAC address
+     */
+    public void insertPermanent(MACAddress mac, int ip)
+    { 
+	this.entries.put(ip, mac.toLong(), true, null); 
+	this.unreachable.remove(ip);
+    }
+
+    /**
+     * Checks if an IP->MAC mapping is the in the cache. Looking a mapping
+     * up counts as using it, so it is refreshed before it expires.
      * @param ip IP address whose MAC address is desired
      * @return the IP->MAC mapping from the cache; null if none exists 
      */
     public ArpEntry lookup(int ip)
     { return this.entries.get(ip); }
 
+    /**
+     * Look up the MAC address for an IP address without allocating. Looking
+     * a mapping up counts as using it, so it is refreshed before it expires.
+     * @param ip IP address whose MAC address is desired
+     * @return the MAC address in the low 48 bits; NO_MAC if none exists
+     */
+    public long lookupMac(int ip)
+    { return this.entries.lookupMac(ip); }
+
+    /**
+     * Checks if an IP->MAC mapping is in the cache, without counting as a
+     * use of the mapping.
+     * @param ip IP address
+     * @return true if a mapping exists
+     */
+    public boolean contains(int ip)
+    { return this.entries.contains(ip); }
+
+    /**
+     * Replace the MAC address of a learned mapping, such as when a refresh
+     * request is answered. Permanent mappings, and addresses without a
+     * mapping, are left alone.
+     * @param mac MAC address corresponding to IP address
+     * @param ip IP address corresponding to MAC address
+     * @param iface interface the answer was received on
+     * @return true if the mapping was replaced
+     */
+    public boolean refresh(MACAddress mac, int ip, Iface iface)
+    { return this.entries.refresh(ip, mac.toLong(), iface); }
+
+    /**
+     * Remember that an IP address did not answer ARP requests.
+     * @param ip IP address that did not answer
+     */
+    public void insertUnreachable(int ip)
+    {
+	long negativeTimeout = this.negativeTimeout;
+	if (negativeTimeout > 0)
+	{ 
+	    this.unreachable.put(ip, 
+		    System.currentTimeMillis() + negativeTimeout); 
+	}
+    }
+
+    /**
+     * @param ip IP address without a mapping
+     * @return true if the address recently did not answer ARP requests
+     */
+    public boolean isUnreachable(int ip)
+    {
+	Long until = this.unreachable.get(ip);
+	if (null == until)
+	{ return false; }
+	if (System.currentTimeMillis() < until)
+	{ return true; }
+	this.unreachable.remove(ip, until);
+	return false;
+    }
+
+    /**
+     * Remove expired mappings and forgotten unreachable addresses, and find
+     * the mappings to refresh: those about to expire that were used since
+     * the last sweep. Each mapping is returned for refresh once.
+     * @return mappings to refresh
+     */
+    public List<ArpEntry> age()
+    {
+	long now = System.currentTimeMillis();
+	List<ArpEntry> refresh = Collections.emptyList();
+	long timeout = this.timeout;
+	if (timeout > 0)
+	{ refresh = this.entries.age(timeout, REFRESH_TIME); }
+
+	for (Map.Entry<Integer,Long> entry : this.unreachable.entrySet())
+	{
+	    if (now >= entry.getValue())
+	    { this.unreachable.remove(entry.getKey(), entry.getValue()); }
+	}
+	return refresh;
+    }
+
     /**
      * Populate the ARP cache from a file.
      * @param filename name of the file containing the static route table
@@ -118,7 +282,7 @@ public class ArpCache
 	    }
 
 	    // Add an entry to the ACP cache
-	    this.insert(mac, ip);
+	    this.insertPermanent(mac, ip);
 	}
 
 	// Close the file
@@ -128,9 +292,9 @@ public class ArpCache
 
     public String toString()
     {
-	String result = "IP\t\tMAC\n";
-	for (ArpEntry entry : this.entries.values())
-	{ result += entry.toString()+"\n"; }
-	return result;
+	StringBuilder result = new StringBuilder("IP\t\tMAC\n");
+	for (ArpEntry entry : this.entries.entries())
+	{ result.append(entry.toString()).append("\n"); }
+	return result.toString();
     }
 }
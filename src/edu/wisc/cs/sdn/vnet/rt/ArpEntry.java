@@ -1,5 +1,6 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
+import edu.wisc.cs.sdn.vnet.Iface;
 import net.floodlightcontroller.packet.IPv4;
 import net.floodlightcontroller.packet.MACAddress;
 
@@ -18,16 +19,46 @@ public class ArpEntry
 	/** Time (in milliseconds since the epoch) the mapping was created */
 	private long timeAdded;
 	
+	/** True if the mapping never expires */
+	private boolean permanent;
+	
+	/** Interface the mapping was learned on; null if unknown */
+	private Iface iface;
+	
 	/**
 	 * Create an ARP table entry that maps an IP address to a MAC address.
 	 * @param mac MAC address corresponding to IP address
 	 * @param ip IP address corresponding to MAC address
 	 */
 	public ArpEntry(MACAddress mac, int ip)
+	{ this(mac, ip, false); }
+	
+	/**
+	 * Create an ARP table entry that maps an IP address to a MAC address.
+	 * @param mac MAC address corresponding to IP address
+	 * @param ip IP address corresponding to MAC address
+	 * @param permanent true if the mapping never expires
+	 */
+	public ArpEntry(MACAddress mac, int ip, boolean permanent)
+	{ this(mac, ip, System.currentTimeMillis(), permanent, null); }
+	
+	/**
+	 * Create an ARP table entry for a mapping the cache already holds.
+	 * @param mac MAC address corresponding to IP address
+	 * @param ip IP address corresponding to MAC address
+	 * @param timeAdded time (in milliseconds since the epoch) the mapping
+	 *        was created
+	 * @param permanent true if the mapping never expires
+	 * @param iface interface the mapping was learned on; null if unknown
+	 */
+	ArpEntry(MACAddress mac, int ip, long timeAdded, boolean permanent,
+			Iface iface)
 	{
 		this.mac = mac;
 		this.ip = ip;
-		this.timeAdded = System.currentTimeMillis();
+		this.timeAdded = timeAdded;
+		this.permanent = permanent;
+		this.iface = iface;
 	}
 	
 	/**
@@ -48,6 +79,18 @@ public class ArpEntry
 	public long getTimeAdded()
 	{ return this.timeAdded; }
 	
+	/**
+	 * @return true if the mapping never expires
+	 */
+	public boolean isPermanent()
+	{ return this.permanent; }
+	
+	/**
+	 * @return interface the mapping was learned on; null if unknown
+	 */
+	public Iface getInterface()
+	{ return this.iface; }
+	
 	public String toString()
 	{
 		return String.format("%s \t%s", IPv4.fromIPv4Address(this.ip),
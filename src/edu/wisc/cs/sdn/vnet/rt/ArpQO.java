@@ -1,6 +1,7 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
 import net.floodlightcontroller.packet.*;
 import java.util.*;
 import java.util.concurrent.*;
@@ -8,114 +9,344 @@ import java.util.concurrent.*;
 class ArpQOData {
     boolean request;
     int count;   
-    Queue<Ethernet> packets;
+
+    /** Serialized frames waiting for the MAC address, oldest first */
+    Deque<byte[]> packets;
+
+    /** Total length of the waiting frames */
+    long bytes;
+
+    /** ARP request to retransmit, and the interface to send it on */
+    Ethernet arpRequest;
+    Iface outIface;
+
+    /** Timer for the next retransmit or for giving up */
+    TimingWheel.Timeout retry;
 
     ArpQOData() {
 	request = false;
 	count = 1;
-	packets = new LinkedList<>();
+	packets = new ArrayDeque<>();
     }
 
     public void printPacketQueue() {
-	for(Ethernet e : packets) { 
-	    System.out.println(e); 
+	for(byte[] frame : packets) {
+	    Log.debug("frame of " + frame.length + " bytes");
 	}
     }
 
     public String toString() {
-	return ("request: " + request + ", count: " + count);
+	return ("request: " + request + ", count: " + count
+		+ ", packets: " + packets.size() + ", bytes: " + bytes);
     }
 }
 
 
+/**
+ * Packets waiting for the MAC address of their next hop. Several packet
+ * workers and the retry timers use the queue at once, so every change to
+ * it is made while holding its lock; packets are sent after letting go of
+ * it.
+ *
+ * Each next hop waiting for a reply has one timer on the shared timing
+ * wheel. It retransmits the ARP request every second and, after the third
+ * request goes unanswered, sends a destination host unreachable message
+ * for every waiting packet. A reply cancels the timer.
+ *
+ * Packets are kept as serialized frames, and the queue is bounded both
+ * per next hop and in total, by packets and by bytes, so a flood toward a
+ * next hop that never answers cannot use up the heap. When a next hop's
+ * queue is full, either the new packet or its oldest packet is dropped;
+ * when the total is reached, new packets are dropped. Drops are counted.
+ */
 public class ArpQO {
-    ConcurrentHashMap<Integer, ArpQOData> packetMap;
-    
-    public ArpQO() {
-	packetMap = new ConcurrentHashMap<>();
+    /** Which packet to drop when a next hop's queue is full */
+    public enum DropPolicy {
+	/** Drop the packet being queued */
+	TAIL,
+	/** Drop the packet that has waited longest, and queue the new one */
+	OLDEST
     }
 
-    public void insert(int ip, Ethernet etherPacket) {
-	if (!packetMap.containsKey(ip)) {
-	    packetMap.put(ip, new ArpQOData());
-	} 
-	packetMap.get(ip).packets.add(etherPacket);
+    /** Most ARP requests sent for a next hop before giving up */
+    private static final int MAX_REQUESTS = 3;
+
+    /** Time (in milliseconds) between ARP requests */
+    private static final long RETRY_INTERVAL = 1000;
+
+    /** Default limits on the packets waiting for one next hop */
+    public static final int MAX_PACKETS_PER_HOP = 64;
+    public static final long MAX_BYTES_PER_HOP = 128 * 1024;
 
+    /** Default limits on the packets waiting for all next hops */
+    public static final int MAX_PACKETS = 4096;
+    public static final long MAX_BYTES = 8 * 1024 * 1024;
+
+    ConcurrentHashMap<Integer, ArpQOData> packetMap;
+
+    /** Router the packets are sent by */
+    private final Router router;
+
+    /** Wheel the retry timers run on */
+    private final TimingWheel timers;
+
+    /** Limits on the waiting packets */
+    private int maxPacketsPerHop = MAX_PACKETS_PER_HOP;
+    private long maxBytesPerHop = MAX_BYTES_PER_HOP;
+    private int maxPackets = MAX_PACKETS;
+    private long maxBytes = MAX_BYTES;
+
+    /** Which packet to drop when a next hop's queue is full */
+    private DropPolicy dropPolicy = DropPolicy.TAIL;
+
+    /** Packets and bytes waiting for all next hops */
+    private int totalPackets;
+    private long totalBytes;
+
+    /** Packets and bytes dropped because a queue was full */
+    private long dropped;
+    private long droppedBytes;
+
+    public ArpQO(Router router, TimingWheel timers) {
+	packetMap = new ConcurrentHashMap<>();
+	this.router = router;
+	this.timers = timers;
     }
-    
-    public void timeout(final int ip, final Router router, final Ethernet ether, final Iface inIface) {
-	final ArpQOData data = packetMap.get(ip);
 
-	if (data.request) {
-	    System.out.println("exiting in excute for ip: " + IPv4.fromIPv4Address(ip));
-	    return;
-	}
-	
-	if (data.count >= 3 && !data.request) {
-	    // Desitnation net unreachable message if even after 3 requests
-	    // mac address is not available
+    /**
+     * Limit the packets waiting for MAC addresses.
+     * @param packetsPerHop most packets waiting for one next hop
+     * @param bytesPerHop most bytes waiting for one next hop
+     * @param packets most packets waiting for all next hops
+     * @param bytes most bytes waiting for all next hops
+     */
+    public synchronized void setLimits(int packetsPerHop, long bytesPerHop,
+	    int packets, long bytes) {
+	this.maxPacketsPerHop = packetsPerHop;
+	this.maxBytesPerHop = bytesPerHop;
+	this.maxPackets = packets;
+	this.maxBytes = bytes;
+    }
 
-	    //data.printPacketQueue();
+    /**
+     * @param dropPolicy which packet to drop when a next hop's queue is full
+     */
+    public synchronized void setDropPolicy(DropPolicy dropPolicy) {
+	this.dropPolicy = dropPolicy;
+    }
 
-	    Ethernet packet = data.packets.remove();
+    /**
+     * @return number of packets dropped because a queue was full
+     */
+    public synchronized long getDropped() {
+	return this.dropped;
+    }
 
-	    System.out.println("packet being sent for ICMP request is");
-	    System.out.println(packet.toString());
+    /**
+     * @return number of bytes dropped because a queue was full
+     */
+    public synchronized long getDroppedBytes() {
+	return this.droppedBytes;
+    }
 
-	    IPv4 ipPacket = (IPv4)packet.getPayload();
-	    int srcAddr = ipPacket.getSourceAddress();
-	    RouteEntry bestmatch = router.getRouteTable().lookup(srcAddr);
+    /**
+     * Queue a packet until the MAC address of its next hop is known. The
+     * first packet for a next hop starts the retry timer; the caller sends
+     * the first ARP request.
+     * @param ip IP address of the next hop
+     * @param etherPacket packet to send once the MAC address is known
+     * @param arpRequest ARP request for the next hop, retransmitted until
+     *        answered
+     * @param outIface interface the ARP request is sent on
+     * @return true if the packet is the first waiting for the next hop, so 
+     *         an ARP request must be sent
+     */
+    public boolean insert(int ip, Ethernet etherPacket, 
+	    Ethernet arpRequest, Iface outIface) {
+	// Keep only the bytes; they are much smaller than the packet objects
+	// and do not refer to the buffer the packet was read into
+	byte[] frame = etherPacket.serialize();
+	synchronized (this) {
+	    ArpQOData data = packetMap.get(ip);
+	    boolean first = (data == null);
 
-	    // If no entry matched, do nothing
-	    if (null == bestmatch) { 
-		System.out.println("Cannot find the source address in the route table");
-		return; 
-	    }   
+	    // Drop frames that could not be queued even with the next hop's
+	    // queue empty, before evicting anything for them
+	    if (frame.length > maxBytesPerHop
+		    || totalPackets >= maxPackets
+		    || totalBytes + frame.length > maxBytes) {
+		drop(frame);
+		return false;
+	    }
 
-	    Iface outIface = bestmatch.getInterface();
-	    router.createICMPMessage(packet, outIface, (byte)3, (byte)1); 
+	    // Make room in the next hop's queue, if the policy allows; the frame
+	    // fits once the queue is short enough
+	    while (!first && !data.packets.isEmpty()
+		    && (data.packets.size() >= maxPacketsPerHop
+			|| data.bytes + frame.length > maxBytesPerHop)) {
+		if (dropPolicy != DropPolicy.OLDEST) {
+		    drop(frame);
+		    return false;
+		}
+		byte[] oldest = data.packets.removeFirst();
+		data.bytes -= oldest.length;
+		totalPackets--;
+		totalBytes -= oldest.length;
+		drop(oldest);
+	    }
 
-	    if (data.packets.isEmpty()) {
-		packetMap.remove(ip);
+	    if (first) {
+		data = new ArpQOData();
+		data.arpRequest = arpRequest;
+		data.outIface = outIface;
+		data.retry = scheduleRetry(ip);
+		packetMap.put(ip, data);
 	    }
-	    return;
+	    data.packets.addLast(frame);
+	    data.bytes += frame.length;
+	    totalPackets++;
+	    totalBytes += frame.length;
+	    return first;
 	}
+    }
 
-	new Timer().schedule(
-		new TimerTask() {
-		    public void run() {
-			execute(ip, router, ether, inIface);
-		}
-	    }, 1000);
+    /** Count a dropped frame; called with the lock held */
+    private void drop(byte[] frame) {
+	if (0 == dropped) {
+	    Log.warn("ARP pending queue is full, dropping packets");
+	}
+	dropped++;
+	droppedBytes += frame.length;
+    }
+
+    /** Take a next hop off the queue; called with the lock held */
+    private ArpQOData remove(int ip) {
+	ArpQOData data = packetMap.remove(ip);
+	if (data != null) {
+	    totalPackets -= data.packets.size();
+	    totalBytes -= data.bytes;
+	}
+	return data;
     }
 
-    public void execute (int ip, Router router, Ethernet ether, Iface inIface) {
+    /**
+     * Remember that the MAC address of an IP address is known, so no more
+     * requests are sent for it.
+     */
+    public synchronized void setRequested(int ip) {
 	ArpQOData data = packetMap.get(ip);
+	if (data != null) {
+	    data.request = true;
+	}
+    }
+
+    /**
+     * Drop every waiting packet and stop all retries, such as when the
+     * router shuts down; the wheel is shared with other routers.
+     */
+    public synchronized void clear() {
+	for (ArpQOData data : packetMap.values()) {
+	    data.request = true;
+	    data.retry.cancel();
+	}
+	packetMap.clear();
+	totalPackets = 0;
+	totalBytes = 0;
+    }
 
+    /**
+     * Take the packets waiting for an IP address whose MAC address is now
+     * known, and stop its retries. Only one caller gets them.
+     * @return the waiting frames, oldest first, with room for the
+     *         destination MAC address to be filled in; null if none are
+     *         waiting
+     */
+    public synchronized Queue<byte[]> resolve(int ip) {
+	ArpQOData data = remove(ip);
 	if (data == null) {
-	    return;
+	    return null;
 	}
+	data.request = true;
+	data.retry.cancel();
+	return data.packets;
+    }
+
+    private TimingWheel.Timeout scheduleRetry(final int ip) {
+	return timers.schedule(new Runnable() {
+		public void run() {
+		    retry(ip);
+		}
+	    }, RETRY_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Retransmit the ARP request for a next hop, or give up on it once
+     * enough requests went unanswered. Runs on the timing wheel.
+     */
+    private void retry(int ip) {
+	ArpQOData data;
+	Queue<byte[]> failed = null;
+	synchronized (this) {
+	    data = packetMap.get(ip);
+	    if (data == null || data.request) {
+		if (Log.isDebugEnabled()) {
+		    Log.debug("exiting in excute for ip: " + IPv4.fromIPv4Address(ip));
+		}
+		return;
+	    }
 
-	System.out.println("Attemp " + data.count  + "  at finding mac address"); 
+	    if (Log.isDebugEnabled()) {
+		Log.debug("Attemp " + data.count  + "  at finding mac address"); 
+	    }
+
+	    if (data.count < MAX_REQUESTS) {
+		data.count++;
+		data.retry = scheduleRetry(ip);
+	    } else {
+		remove(ip);
+		failed = data.packets;
+
+		// Refuse packets for the next hop for a while, instead of
+		// asking again for each
+		router.getArpCache().insertUnreachable(ip);
+	    }
+	}
 
-	if (data.request) {
-	    System.out.println("exiting in excute for ip: " + IPv4.fromIPv4Address(ip));
+	if (failed == null) {
+	    router.sendPacket(data.arpRequest, data.outIface);
 	    return;
 	}
 
-	if (!data.request && data.count < 3) {
-	    router.sendPacket(ether, inIface);
-	    data.count++;
-	} 
-	timeout(ip, router, ether, inIface);
+	// Desitnation net unreachable message if even after 3 requests
+	// mac address is not available
+	for (byte[] frame : failed) {
+	    Ethernet packet = new Ethernet();
+	    packet.deserialize(frame, 0, frame.length);
+	    if (Log.isDebugEnabled()) {
+		Log.debug("packet being sent for ICMP request is\n" + packet.toString());
+	    }
+
+	    IPv4 ipPacket = (IPv4)packet.getPayload();
+	    int srcAddr = ipPacket.getSourceAddress();
+	    RouteEntry bestmatch = router.getRouteTable().lookup(srcAddr);
+
+	    // If no entry matched, do nothing
+	    if (null == bestmatch) { 
+		Log.debug("Cannot find the source address in the route table");
+		continue; 
+	    }   
+
+	    Iface outIface = bestmatch.getInterface();
+	    router.createICMPMessage(packet, outIface, (byte)3, (byte)1); 
+	}
     }
 
     public void print() {
-	System.out.println("{");
+	StringBuilder sb = new StringBuilder("{\n");
 	for (int ip : packetMap.keySet()) {
-	    System.out.println("(" + IPv4.fromIPv4Address(ip) + " -> " + packetMap.get(ip).toString() + 
-		    ")");
+	    sb.append("(").append(IPv4.fromIPv4Address(ip)).append(" -> ")
+		.append(packetMap.get(ip)).append(")\n");
 	}
-	System.out.println("}");
+	Log.debug(sb.append("}").toString());
     }
 }
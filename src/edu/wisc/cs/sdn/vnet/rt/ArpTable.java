@@ -0,0 +1,309 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+import net.floodlightcontroller.packet.MACAddress;
+
+/**
+ * Open-addressing hash table from IP address to MAC address, keyed by a
+ * primitive int with the MAC packed into a long, so a lookup neither boxes
+ * the key nor allocates.
+ *
+ * Lookups take no lock. Changes are made one at a time under the table's
+ * lock. A slot's key never changes once written: the value is written
+ * before the key is published, and removing a mapping only clears its
+ * value, so a reader that finds its key always reads that key's value.
+ * Cleared slots are reclaimed when the table is rebuilt into new arrays,
+ * which readers still using the old arrays never see change.
+ */
+class ArpTable
+{
+    /** Value of a slot with no mapping, and result of a failed lookup */
+    static final long NONE = -1L;
+
+    /** Low 48 bits of a value hold the MAC address */
+    private static final long MAC_MASK = (1L << 48) - 1;
+
+    /** Set in a value if the mapping never expires */
+    private static final long PERMANENT = 1L << 48;
+
+    /** Smallest number of slots */
+    private static final int MIN_CAPACITY = 64;
+
+    /** Arrays holding the mappings */
+    private static class Slots
+    {
+	/** IP address of each slot; 0 if the slot was never used */
+	final AtomicIntegerArray keys;
+
+	/** MAC address and flags of each slot; NONE if removed */
+	final AtomicLongArray values;
+
+	/** Time (in milliseconds since the epoch) each mapping was created;
+	 *  written before the value */
+	final long[] timesAdded;
+
+	/** Interface each mapping was learned on, or null; written before
+	 *  the value */
+	final Iface[] ifaces;
+
+	/** Set by readers when a mapping is used; a hint for aging only */
+	final byte[] used;
+
+	/** Set once a refresh was asked for a mapping; only used by the
+	 *  writer */
+	final boolean[] refreshing;
+
+	final int mask;
+
+	Slots(int capacity)
+	{
+	    this.keys = new AtomicIntegerArray(capacity);
+	    this.values = new AtomicLongArray(capacity);
+	    this.timesAdded = new long[capacity];
+	    this.ifaces = new Iface[capacity];
+	    this.used = new byte[capacity];
+	    this.refreshing = new boolean[capacity];
+	    this.mask = capacity - 1;
+	}
+
+	int capacity()
+	{ return this.mask + 1; }
+    }
+
+    /** Current arrays; replaced when the table is rebuilt */
+    private volatile Slots slots = new Slots(MIN_CAPACITY);
+
+    /** Slots with a key, including removed mappings; only used by the
+     *  writer */
+    private int occupied;
+
+    /** Slots with a mapping; only used by the writer */
+    private int live;
+
+    private static int hash(int ip)
+    { return (ip * 0x9E3779B9) ^ (ip >>> 16); }
+
+    /**
+     * Find the slot of an IP address.
+     * @return index of the slot holding the address, or of the empty slot
+     *         where it would go
+     */
+    private static int find(Slots slots, int ip)
+    {
+	int i = hash(ip) & slots.mask;
+	while (true)
+	{
+	    int key = slots.keys.get(i);
+	    if (key == ip || 0 == key)
+	    { return i; }
+	    i = (i + 1) & slots.mask;
+	}
+    }
+
+    /**
+     * Look up the MAC address of an IP address, and note that the mapping
+     * was used.
+     * @param ip IP address; never 0
+     * @return MAC address in the low 48 bits, or NONE if there is none
+     */
+    long lookupMac(int ip)
+    {
+	if (0 == ip)
+	{ return NONE; }
+	Slots slots = this.slots;
+	int i = find(slots, ip);
+	long value = slots.values.get(i);
+	if (NONE == value || slots.keys.get(i) != ip)
+	{ return NONE; }
+	if (0 == slots.used[i])
+	{ slots.used[i] = 1; }
+	return value & MAC_MASK;
+    }
+
+    /**
+     * @param ip IP address
+     * @return true if the table has a mapping for the address
+     */
+    boolean contains(int ip)
+    {
+	if (0 == ip)
+	{ return false; }
+	Slots slots = this.slots;
+	int i = find(slots, ip);
+	return slots.keys.get(i) == ip && slots.values.get(i) != NONE;
+    }
+
+    /**
+     * @param ip IP address
+     * @return a copy of the mapping for the address; null if none exists
+     */
+    ArpEntry get(int ip)
+    {
+	if (0 == ip)
+	{ return null; }
+	Slots slots = this.slots;
+	int i = find(slots, ip);
+	long value = slots.values.get(i);
+	if (NONE == value || slots.keys.get(i) != ip)
+	{ return null; }
+	if (0 == slots.used[i])
+	{ slots.used[i] = 1; }
+	return entry(slots, i, value);
+    }
+
+    private static ArpEntry entry(Slots slots, int i, long value)
+    {
+	return new ArpEntry(MACAddress.valueOf(value & MAC_MASK),
+		slots.keys.get(i), slots.timesAdded[i],
+		(value & PERMANENT) != 0, slots.ifaces[i]);
+    }
+
+    /**
+     * Add or replace the mapping for an IP address.
+     * @param ip IP address; never 0
+     * @param mac MAC address in the low 48 bits
+     * @param permanent true if the mapping never expires
+     * @param iface interface the mapping was learned on; null if unknown
+     */
+    synchronized void put(int ip, long mac, boolean permanent, Iface iface)
+    {
+	Slots slots = this.slots;
+	int i = find(slots, ip);
+	if (0 == slots.keys.get(i))
+	{
+	    // A new key; make sure the table keeps enough empty slots
+	    if ((this.occupied + 1) * 2 > slots.capacity())
+	    {
+		slots = this.rebuild();
+		i = find(slots, ip);
+	    }
+	    this.occupied++;
+	}
+	if (NONE == slots.values.get(i) || 0 == slots.keys.get(i))
+	{ this.live++; }
+
+	slots.timesAdded[i] = System.currentTimeMillis();
+	slots.ifaces[i] = iface;
+	slots.used[i] = 0;
+	slots.refreshing[i] = false;
+	slots.values.set(i, (mac & MAC_MASK) | (permanent ? PERMANENT : 0));
+	slots.keys.set(i, ip);
+    }
+
+    /**
+     * Replace the MAC address of a mapping that expires, if one exists.
+     * @param ip IP address
+     * @param mac MAC address in the low 48 bits
+     * @param iface interface the new address was learned on
+     * @return true if the mapping was replaced
+     */
+    synchronized boolean refresh(int ip, long mac, Iface iface)
+    {
+	Slots slots = this.slots;
+	int i = find(slots, ip);
+	long value = slots.values.get(i);
+	if (slots.keys.get(i) != ip || NONE == value
+		|| (value & PERMANENT) != 0)
+	{ return false; }
+	this.put(ip, mac, false, iface);
+	return true;
+    }
+
+    /** Remove the mapping in a slot; called with the lock held */
+    private void remove(Slots slots, int i)
+    {
+	slots.values.set(i, NONE);
+	this.live--;
+    }
+
+    /**
+     * Copy the mappings into new arrays, leaving out removed ones, and
+     * switch readers to them. Called with the lock held.
+     * @return the new arrays
+     */
+    private Slots rebuild()
+    {
+	Slots old = this.slots;
+	int capacity = MIN_CAPACITY;
+	while (capacity < (this.live + 1) * 4)
+	{ capacity <<= 1; }
+
+	Slots slots = new Slots(capacity);
+	for (int i = 0; i <= old.mask; i++)
+	{
+	    long value = old.values.get(i);
+	    int key = old.keys.get(i);
+	    if (0 == key || NONE == value)
+	    { continue; }
+	    int j = find(slots, key);
+	    slots.timesAdded[j] = old.timesAdded[i];
+	    slots.ifaces[j] = old.ifaces[i];
+	    slots.used[j] = old.used[i];
+	    slots.refreshing[j] = old.refreshing[i];
+	    slots.values.set(j, value);
+	    slots.keys.set(j, key);
+	}
+	this.occupied = this.live;
+	this.slots = slots;
+	return slots;
+    }
+
+    /**
+     * Remove expired mappings, and find the mappings to refresh: those
+     * about to expire that were used since the last sweep. Each mapping is
+     * returned for refresh once.
+     * @param timeout time (in milliseconds) mappings are kept
+     * @param refreshTime time (in milliseconds) before expiry that used
+     *        mappings are refreshed
+     * @return mappings to refresh
+     */
+    synchronized List<ArpEntry> age(long timeout, long refreshTime)
+    {
+	long now = System.currentTimeMillis();
+	List<ArpEntry> refresh = new ArrayList<ArpEntry>();
+	Slots slots = this.slots;
+	for (int i = 0; i <= slots.mask; i++)
+	{
+	    long value = slots.values.get(i);
+	    if (0 == slots.keys.get(i) || NONE == value
+		    || (value & PERMANENT) != 0)
+	    { continue; }
+
+	    boolean used = (slots.used[i] != 0);
+	    if (used)
+	    { slots.used[i] = 0; }
+
+	    long age = now - slots.timesAdded[i];
+	    if (age >= timeout)
+	    { this.remove(slots, i); }
+	    else if (age >= timeout - refreshTime && used
+		    && !slots.refreshing[i])
+	    {
+		slots.refreshing[i] = true;
+		refresh.add(entry(slots, i, value));
+	    }
+	}
+	return refresh;
+    }
+
+    /**
+     * @return copies of all mappings
+     */
+    List<ArpEntry> entries()
+    {
+	Slots slots = this.slots;
+	List<ArpEntry> entries = new ArrayList<ArpEntry>();
+	for (int i = 0; i <= slots.mask; i++)
+	{
+	    long value = slots.values.get(i);
+	    if (slots.keys.get(i) != 0 && value != NONE)
+	    { entries.add(entry(slots, i, value)); }
+	}
+	return entries;
+    }
+}
@@ -0,0 +1,112 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Immutable DIR-24-8 lookup table. The first 24 bits of an address index
+ * directly into a table of 2^24 slots; prefixes longer than 24 bits are
+ * expanded into 256-slot overflow blocks. A lookup costs one memory access,
+ * or two for addresses covered by a prefix longer than /24.
+ *
+ * Building the table touches every slot covered by every prefix, and the
+ * main table alone takes 64 MB, so it suits large, mostly static tables.
+ */
+class Dir24Table
+{
+    /** Marks a slot of the main table that refers to an overflow block */
+    private static final int OVERFLOW = 0x80000000;
+
+    /** Size of an overflow block */
+    private static final int BLOCK_SIZE = 256;
+
+    /** Routes referred to by the tables; index 0 means no route */
+    private final RouteEntry[] nextHops;
+
+    /** Route index or overflow block for each /24 */
+    private final int[] tbl24;
+
+    /** Overflow blocks of route indexes for prefixes longer than /24 */
+    private final int[] tblLong;
+
+    private Dir24Table(RouteEntry[] nextHops, int[] tbl24, int[] tblLong)
+    {
+	this.nextHops = nextHops;
+	this.tbl24 = tbl24;
+	this.tblLong = tblLong;
+    }
+
+    /**
+     * Build a table from a set of routes.
+     * @param entries routes to include
+     * @return the table
+     */
+    static Dir24Table build(List<RouteEntry> entries)
+    {
+	// Shorter prefixes first, so longer ones overwrite them
+	RouteEntry[] sorted = entries.toArray(new RouteEntry[entries.size()]);
+	Arrays.sort(sorted, new Comparator<RouteEntry>() {
+	    public int compare(RouteEntry a, RouteEntry b)
+	    {
+		return RouteTrie.prefixLength(a.getMaskAddress())
+		    - RouteTrie.prefixLength(b.getMaskAddress());
+	    }
+	});
+
+	RouteEntry[] nextHops = new RouteEntry[sorted.length + 1];
+	int[] tbl24 = new int[1 << 24];
+	int[] tblLong = new int[0];
+	int blocks = 0;
+
+	for (int i = 0; i < sorted.length; i++)
+	{
+	    int index = i + 1;
+	    RouteEntry entry = sorted[i];
+	    nextHops[index] = entry;
+	    int mask = entry.getMaskAddress();
+	    int prefix = entry.getDestinationAddress() & mask;
+	    int length = RouteTrie.prefixLength(mask);
+
+	    if (length <= 24)
+	    {
+		int start = prefix >>> 8;
+		Arrays.fill(tbl24, start, start + (1 << (24 - length)), index);
+		continue;
+	    }
+
+	    // Expand the /24 containing the prefix into an overflow block
+	    int slot = prefix >>> 8;
+	    if ((tbl24[slot] & OVERFLOW) == 0)
+	    {
+		if ((blocks + 1) * BLOCK_SIZE > tblLong.length)
+		{
+		    tblLong = Arrays.copyOf(tblLong,
+			    Math.max(BLOCK_SIZE, tblLong.length * 2));
+		}
+		Arrays.fill(tblLong, blocks * BLOCK_SIZE,
+			(blocks + 1) * BLOCK_SIZE, tbl24[slot]);
+		tbl24[slot] = OVERFLOW | blocks;
+		blocks++;
+	    }
+	    int start = (tbl24[slot] & ~OVERFLOW) * BLOCK_SIZE + (prefix & 0xff);
+	    Arrays.fill(tblLong, start, start + (1 << (32 - length)), index);
+	}
+
+	return new Dir24Table(nextHops, tbl24,
+		Arrays.copyOf(tblLong, blocks * BLOCK_SIZE));
+    }
+
+    /**
+     * Find the route with the longest prefix matching an IP address.
+     * @param ip IP address
+     * @return the matching route entry, null if none exists
+     */
+    RouteEntry lookup(int ip)
+    {
+	int index = this.tbl24[ip >>> 8];
+	if ((index & OVERFLOW) != 0)
+	{ index = this.tblLong[(index & ~OVERFLOW) * BLOCK_SIZE + (ip & 0xff)]; }
+	return this.nextHops[index];
+    }
+}
@@ -0,0 +1,86 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Immutable snapshot of a route table used for forwarding. A route table
+ * builds a new snapshot for each batch of changes and publishes it
+ * atomically, so lookups never take a lock.
+ */
+final class Fib
+{
+    /** Snapshot with no routes */
+    static final Fib EMPTY = new Fib(RouteTrie.EMPTY, false, 0);
+
+    /** Routes in the snapshot */
+    private final RouteTrie trie;
+
+    /** Direct-indexed copy of the routes; null if lookups use the trie */
+    private final Dir24Table direct;
+
+    /** Number of changes made to the route table before this snapshot */
+    private final int generation;
+
+    /** Routes in prefix order; built on first use */
+    private volatile List<RouteEntry> entries;
+
+    /**
+     * Create a snapshot of a set of routes.
+     * @param trie routes in the snapshot
+     * @param directIndexed true if lookups should use a DIR-24-8 table
+     *        instead of the trie
+     * @param generation number of changes made to the route table
+     */
+    Fib(RouteTrie trie, boolean directIndexed, int generation)
+    { 
+	this.trie = trie; 
+	this.direct = directIndexed ? Dir24Table.build(trie.entries()) : null;
+	this.generation = generation;
+    }
+
+    /**
+     * @return number of changes made to the route table before this 
+     *         snapshot; differs between any two snapshots of a table
+     */
+    int getGeneration()
+    { return this.generation; }
+
+    /**
+     * @return true if lookups use a DIR-24-8 table
+     */
+    boolean isDirectIndexed()
+    { return this.direct != null; }
+
+    /**
+     * @return routes in the snapshot
+     */
+    RouteTrie getTrie()
+    { return this.trie; }
+
+    /**
+     * Find the route with the longest prefix matching an IP address.
+     * @param ip IP address
+     * @return the matching route entry, null if none exists
+     */
+    RouteEntry lookup(int ip)
+    {
+	if (this.direct != null)
+	{ return this.direct.lookup(ip); }
+	return this.trie.lookup(ip);
+    }
+
+    /**
+     * @return unmodifiable list of the routes in the snapshot
+     */
+    List<RouteEntry> getEntries()
+    {
+	List<RouteEntry> result = this.entries;
+	if (null == result)
+	{
+	    result = Collections.unmodifiableList(this.trie.entries());
+	    this.entries = result;
+	}
+	return result;
+    }
+}
@@ -0,0 +1,63 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import net.floodlightcontroller.packet.IPv4;
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * One of the paths a route table entry can forward packets along: a gateway
+ * and the router interface that reaches it.
+ */
+public class NextHop
+{
+    /** Gateway IP address; 0 if the destination is directly connected */
+    private final int gatewayAddress;
+
+    /** Router interface out which packets should be sent to reach the
+     * destination or gateway */
+    private final Iface iface;
+
+    /**
+     * Create a new next hop.
+     * @param gatewayAddress gateway IP address
+     * @param iface the router interface out which packets should be sent
+     *        to reach the destination or gateway
+     */
+    public NextHop(int gatewayAddress, Iface iface)
+    {
+	this.gatewayAddress = gatewayAddress;
+	this.iface = iface;
+    }
+
+    /**
+     * @return gateway IP address
+     */
+    public int getGatewayAddress()
+    { return this.gatewayAddress; }
+
+    /**
+     * @return the router interface out which packets should be sent to
+     *         reach the destination or gateway
+     */
+    public Iface getInterface()
+    { return this.iface; }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+	if (!(obj instanceof NextHop))
+	{ return false; }
+	NextHop other = (NextHop)obj;
+	return this.gatewayAddress == other.gatewayAddress
+	    && this.iface == other.iface;
+    }
+
+    @Override
+    public int hashCode()
+    { return 31 * this.gatewayAddress + System.identityHashCode(this.iface); }
+
+    public String toString()
+    {
+	return String.format("%s \t%s", IPv4.fromIPv4Address(this.gatewayAddress),
+		this.iface.getName());
+    }
+}
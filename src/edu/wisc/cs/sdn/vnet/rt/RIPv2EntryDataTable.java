@@ -1,5 +1,7 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
+import edu.wisc.cs.sdn.vnet.DeviceTasks;
+import edu.wisc.cs.sdn.vnet.Log;
 import net.floodlightcontroller.packet.*;
 import java.util.*;
 import java.util.concurrent.*;
@@ -7,34 +9,103 @@ import java.util.concurrent.*;
 public class RIPv2EntryDataTable implements Runnable {
     ConcurrentHashMap<String, RIPv2EntryData> ripDataTable;
     ConcurrentHashMap<String, Integer> routerInterfaces;
-    private Thread timeoutThread; 
-    //private RouteTable routeTable; // #delete
+    private ScheduledFuture<?> timeoutTask; 
+    private final RouteTable routeTable;
     public static final long TIMEOUT = 30000; // 30 seconds
 
+    /** Outcomes of an update: a route not seen before, a lower, the same
+     *  or a higher metric than known, or a directly connected route */
+    public static final int NEW = 0;
+    public static final int BETTER = 1;
+    public static final int EQUAL = 2;
+    public static final int WORSE = 3;
+    public static final int CONNECTED = 4;
+
+    /** Outcome of an update raising the metric of one of the route's next
+     *  hops, while other next hops keep the route's metric: the next hop
+     *  leaves the route's group */
+    public static final int LEFT_GROUP = 5;
+
+    /** Outcome of an update raising the metric of the route's only next
+     *  hop: the route's metric becomes the best one still advertised, and
+     *  its next hops those advertising it */
+    public static final int REGROUPED = 6;
+
+    /**
+     * Create the table, and start expiring next hops that stop advertising.
+     * Callers changing the route table from updates hold the table's lock
+     * from the update until the change is committed, so the expiry sweep
+     * never interleaves with them.
+     * @param rt route table next hops are removed from when they expire
+     */
     public RIPv2EntryDataTable(RouteTable rt) {
 	ripDataTable = new ConcurrentHashMap<>();
 	routerInterfaces = new ConcurrentHashMap<>();
-	timeoutThread = new Thread(this);
-	timeoutThread.start();
-	//routeTable = rt; // #delete
+	routeTable = rt;
+	// Try deleting old entries every second
+	timeoutTask = DeviceTasks.scheduleWithFixedDelay(this, 1, 1, 
+		TimeUnit.SECONDS);
     }
 
     public boolean insert(String entry, int metric) {
+	return update(entry, metric) == NEW;
+    }
+
+    /**
+     * Record an advertised metric for a route.
+     * @return NEW, BETTER, EQUAL, WORSE or CONNECTED
+     */
+    public int update(String entry, int metric) {
 	if (routerInterfaces.containsKey(entry)) {
-	    return false;
+	    return CONNECTED;
 	}
 	
-	System.out.println("Inside insert -> Entry: " + entry + ", metric: " + metric); 
+	if (Log.isDebugEnabled()) {
+	    Log.debug("Inside insert -> Entry: " + entry + ", metric: " + metric); 
+	}
 	
 	if (!ripDataTable.containsKey(entry)) {
 	    ripDataTable.put(entry, new RIPv2EntryData(metric));
-	    return true;
+	    return NEW;
 	} else {
-	    ripDataTable.get(entry).update(metric); 
-	    return false;
+	    return ripDataTable.get(entry).update(metric); 
 	}    
     }
 
+    /**
+     * Record the metric a neighbour advertised for a route. Metrics are 
+     * kept per next hop, so a next hop of the route's group whose metric
+     * rises is taken out of the group.
+     * @param nextHop neighbour the route was learned from
+     * @return NEW, BETTER, EQUAL, WORSE, LEFT_GROUP, REGROUPED or CONNECTED
+     */
+    public int update(String entry, NextHop nextHop, int metric) {
+	if (routerInterfaces.containsKey(entry)) {
+	    return CONNECTED;
+	}
+
+	RIPv2EntryData data = ripDataTable.get(entry);
+	if (null == data) {
+	    data = new RIPv2EntryData(metric);
+	    data.update(nextHop, metric);
+	    ripDataTable.put(entry, data);
+	    return NEW;
+	}
+	return data.update(nextHop, metric);
+    }
+
+    /**
+     * @return the next hops advertising a route's metric; empty if none are
+     *         known
+     */
+    public List<NextHop> getNextHops(String entry) {
+	RIPv2EntryData data = ripDataTable.get(entry);
+	if (null == data) {
+	    return Collections.emptyList();
+	}
+	return data.members();
+    }
+
     public RIPv2EntryData getEntryData(RIPv2Entry entry) {
 	if (!ripDataTable.containsKey(entry)) {
 	    return ripDataTable.get(entry);
@@ -42,41 +113,57 @@ public class RIPv2EntryDataTable implements Runnable {
 	return null;
     }
 
-    public void run() {
-	int count = 0; // Just for testing
-	while(true) {
-	    try {
-		Thread.sleep(1000); // Try deleting old entries after 1 sec
-	    } catch (InterruptedException e) {
-		// Do nothing here 
+    /**
+     * Stop sweeping for expired entries.
+     */
+    public void stop() {
+	timeoutTask.cancel(false);
+    }
+
+    public synchronized void run() {
+	// Take next hops that stopped advertising out of their routes' groups
+	RouteTable.Batch batch = routeTable.beginBatch();
+	long now = System.currentTimeMillis();
+	for (Map.Entry<String, RIPv2EntryData> data : ripDataTable.entrySet()) {
+	    List<NextHop> expired = data.getValue().expire(now, TIMEOUT);
+	    if (expired.isEmpty()) {
+		continue;
+	    }
+	    String[] prefix = data.getKey().split("#");
+	    for (NextHop nextHop : expired) {
+		if (Log.isDebugEnabled()) {
+		    Log.debug("Next hop " + nextHop + " expired for " + data.getKey());
+		}
+		batch.removeNextHop(IPv4.toIPv4Address(prefix[0]), 
+			nextHop.getGatewayAddress(), 
+			IPv4.toIPv4Address(prefix[1]), nextHop.getInterface());
 	    }
+	}
+	batch.commit();
 
-	    //System.out.println("Attempting to remove the expired entries. time: " + count++ + "s");
-	    
-	    // Try removing the entries
-	    for (String entry : ripDataTable.keySet()) {
-		RIPv2EntryData red = ripDataTable.get(entry);
-		if (System.currentTimeMillis() - red.time >= TIMEOUT) {
-		    
-		    if (!routerInterfaces.containsKey(entry)) { 
-			System.out.println("Remove entry: " + entry);
-			
-			// remove from the table
-			//ripDataTable.remove(entry);
-			
-			// remove from route table as well
-			//this.routeTable.remove(entry.getAddress(), entry.getSubnetMask());
+	// Try removing the entries
+	for (String entry : ripDataTable.keySet()) {
+	    RIPv2EntryData red = ripDataTable.get(entry);
+	    if (System.currentTimeMillis() - red.time >= TIMEOUT) {
+		
+		if (!routerInterfaces.containsKey(entry)) { 
+		    if (Log.isDebugEnabled()) {
+			Log.debug("Remove entry: " + entry);
 		    }
+		    
+		    // remove from the table
+		    //ripDataTable.remove(entry);
+		    
+		    // remove from route table as well
+		    //this.routeTable.remove(entry.getAddress(), entry.getSubnetMask());
 		}
 	    }
 	}
     }
 
     public void print() {
-	System.out.println("----- ripDataTable -----");
-	System.out.println(Arrays.asList(ripDataTable));
-	System.out.println("----- routersInterface -----");
-	System.out.println(Arrays.asList(routerInterfaces));
+	Log.debug("----- ripDataTable -----\n" + Arrays.asList(ripDataTable)
+		+ "\n----- routersInterface -----\n" + Arrays.asList(routerInterfaces));
     } 
 
     //public RIPv2Entry checkIfEntryExists(RouteEntry re, RIPv2Entry e1) {
@@ -107,19 +194,111 @@ public class RIPv2EntryDataTable implements Runnable {
 }
 
 class RIPv2EntryData {
+    /** Metric of the route; that of every next hop in its group */
     int metric;
     long time;
 
+    /** Metric a neighbour last advertised, and when */
+    private static class Advert {
+	int metric;
+	long time;
+    }
+
+    /** Adverts for the route by neighbour; the route's group is the
+     *  neighbours advertising its metric */
+    private final Map<NextHop, Advert> adverts = new HashMap<>();
+
     public RIPv2EntryData(int metric) {
 	this.metric = metric;
 	this.time = System.currentTimeMillis();
     }
 
-    public void update(int metric) {
+    /**
+     * Record a neighbour's advert for the route.
+     * @return BETTER, EQUAL, WORSE, LEFT_GROUP or REGROUPED
+     */
+    public synchronized int update(NextHop nextHop, int metric) {
+	time = System.currentTimeMillis();
+	Advert advert = adverts.get(nextHop);
+	boolean member = (advert != null && advert.metric == this.metric);
+	if (null == advert) {
+	    advert = new Advert();
+	    adverts.put(nextHop, advert);
+	}
+	advert.metric = metric;
+	advert.time = time;
+
+	if (this.metric > metric) {
+	    this.metric = metric;
+	    return RIPv2EntryDataTable.BETTER;
+	}
+	if (this.metric == metric) {
+	    return RIPv2EntryDataTable.EQUAL;
+	}
+	if (!member) {
+	    return RIPv2EntryDataTable.WORSE;
+	}
+	for (Advert other : adverts.values()) {
+	    if (other.metric == this.metric) {
+		return RIPv2EntryDataTable.LEFT_GROUP;
+	    }
+	}
+
+	// The only next hop got worse; fall back to the best advert left
+	int best = metric;
+	for (Advert other : adverts.values()) {
+	    best = Math.min(best, other.metric);
+	}
+	this.metric = best;
+	return RIPv2EntryDataTable.REGROUPED;
+    }
+
+    /**
+     * @return the neighbours advertising the route's metric
+     */
+    public synchronized List<NextHop> members() {
+	List<NextHop> members = new ArrayList<>();
+	for (Map.Entry<NextHop, Advert> advert : adverts.entrySet()) {
+	    if (advert.getValue().metric == this.metric) {
+		members.add(advert.getKey());
+	    }
+	}
+	return members;
+    }
+
+    /**
+     * Forget neighbours that have not advertised the route for a while.
+     * The route's last next hop is kept, so routes are never removed.
+     * @return next hops that left the route's group
+     */
+    public synchronized List<NextHop> expire(long now, long timeout) {
+	List<NextHop> expired = new ArrayList<>();
+	int members = members().size();
+	Iterator<Map.Entry<NextHop, Advert>> it = adverts.entrySet().iterator();
+	while (it.hasNext()) {
+	    Map.Entry<NextHop, Advert> advert = it.next();
+	    if (now - advert.getValue().time < timeout) {
+		continue;
+	    }
+	    if (advert.getValue().metric != this.metric) {
+		it.remove();
+	    } else if (members > 1) {
+		it.remove();
+		expired.add(advert.getKey());
+		members--;
+	    }
+	}
+	return expired;
+    }
+
+    public synchronized int update(int metric) {
 	time = System.currentTimeMillis();
 	if (this.metric > metric) {
 	    this.metric = metric;
+	    return RIPv2EntryDataTable.BETTER;
 	}
+	return (this.metric == metric) ? RIPv2EntryDataTable.EQUAL 
+	    : RIPv2EntryDataTable.WORSE;
     }
 
     public String toString() {
@@ -0,0 +1,61 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+/**
+ * Direct-mapped cache of route lookup results, keyed by destination IP.
+ * Each result is tagged with the generation of the snapshot it was computed
+ * from, so every change to the route table invalidates the whole cache
+ * without touching it.
+ */
+class RouteCache
+{
+    /** A cached lookup result; immutable so slots can be read without locks */
+    private static class Slot
+    {
+	final int ip;
+	final int generation;
+	final RouteEntry entry;
+
+	Slot(int ip, int generation, RouteEntry entry)
+	{
+	    this.ip = ip;
+	    this.generation = generation;
+	    this.entry = entry;
+	}
+    }
+
+    /** Cached results, indexed by a hash of the IP */
+    private final Slot[] slots;
+
+    /** Shift that reduces a 32-bit hash to a slot index */
+    private final int shift;
+
+    /**
+     * Create an empty cache.
+     * @param bits log2 of the number of slots
+     */
+    RouteCache(int bits)
+    {
+	this.slots = new Slot[1 << bits];
+	this.shift = 32 - bits;
+    }
+
+    /**
+     * Find the route with the longest prefix matching an IP address, using
+     * a cached result if one exists for the snapshot.
+     * @param fib current snapshot of the route table
+     * @param ip IP address
+     * @return the matching route entry, null if none exists
+     */
+    RouteEntry lookup(Fib fib, int ip)
+    {
+	int index = (ip * 0x9E3779B9) >>> this.shift;
+	Slot slot = this.slots[index];
+	if (slot != null && slot.ip == ip 
+		&& slot.generation == fib.getGeneration())
+	{ return slot.entry; }
+
+	RouteEntry entry = fib.lookup(ip);
+	this.slots[index] = new Slot(ip, fib.getGeneration(), entry);
+	return entry;
+    }
+}
@@ -1,42 +1,74 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
+import java.util.Arrays;
+
 import net.floodlightcontroller.packet.IPv4;
 import edu.wisc.cs.sdn.vnet.Iface;
 
 /**
- * An entry in a route table.
+ * An entry in a route table. An entry holds one or more equal-cost next
+ * hops; packets are spread across them by flow. Entries are shared by the
+ * table's published snapshots, so they never change: a changed route is a
+ * new entry, made through RouteTable.
  * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
  */
-public class RouteEntry 
+public class RouteEntry
 {
     /** Destination IP address */
-    private int destinationAddress;
-
-    /** Gateway IP address */
-    private int gatewayAddress;
+    private final int destinationAddress;
 
     /** Subnet mask */
-    private int maskAddress;
+    private final int maskAddress;
+
+    /** Equal-cost next hops; never empty, the first is the primary */
+    private final NextHop[] nextHops;
 
-    /** Router interface out which packets should be sent to reach
-     * the destination or gateway */
-    private Iface iface;
+    /** Hop count learned from RIP; 0 for static and connected routes */
+    private final int metric;
 
     /**
      * Create a new route table entry.
      * @param destinationAddress destination IP address
      * @param gatewayAddress gateway IP address
      * @param maskAddress subnet mask
-     * @param iface the router interface out which packets should 
+     * @param iface the router interface out which packets should
      *        be sent to reach the destination or gateway
      */
-    public RouteEntry(int destinationAddress, int gatewayAddress, 
+    public RouteEntry(int destinationAddress, int gatewayAddress,
 	    int maskAddress, Iface iface)
+    { this(destinationAddress, gatewayAddress, maskAddress, iface, 0); }
+
+    /**
+     * Create a new route table entry with a metric.
+     * @param destinationAddress destination IP address
+     * @param gatewayAddress gateway IP address
+     * @param maskAddress subnet mask
+     * @param iface the router interface out which packets should
+     *        be sent to reach the destination or gateway
+     * @param metric hop count learned from RIP; 0 for static routes
+     */
+    public RouteEntry(int destinationAddress, int gatewayAddress,
+	    int maskAddress, Iface iface, int metric)
+    {
+	this(destinationAddress, maskAddress,
+		new NextHop[] { new NextHop(gatewayAddress, iface) }, metric);
+    }
+
+    /**
+     * Create a new route table entry with several equal-cost next hops.
+     * @param destinationAddress destination IP address
+     * @param maskAddress subnet mask
+     * @param nextHops next hops, the first being the primary; must not be
+     *        empty
+     * @param metric hop count learned from RIP; 0 for static routes
+     */
+    public RouteEntry(int destinationAddress, int maskAddress,
+	    NextHop[] nextHops, int metric)
     {
 	this.destinationAddress = destinationAddress;
-	this.gatewayAddress = gatewayAddress;
 	this.maskAddress = maskAddress;
-	this.iface = iface;
+	this.nextHops = nextHops.clone();
+	this.metric = metric;
     }
 
     /**
@@ -46,36 +78,113 @@ public class RouteEntry
     { return this.destinationAddress; }
 
     /**
-     * @return gateway IP address
+     * @return gateway IP address of the primary next hop
      */
     public int getGatewayAddress()
-    { return this.gatewayAddress; }
-
-    public void setGatewayAddress(int gatewayAddress)
-    { this.gatewayAddress = gatewayAddress; }
+    { return this.nextHops[0].getGatewayAddress(); }
 
     /**
-     * @return subnet mask 
+     * @return subnet mask
      */
     public int getMaskAddress()
     { return this.maskAddress; }
 
     /**
-     * @return the router interface out which packets should be sent to 
-     *         reach the destination or gateway
+     * @return the router interface out which packets should be sent to
+     *         reach the destination or gateway of the primary next hop
      */
     public Iface getInterface()
-    { return this.iface; }
+    { return this.nextHops[0].getInterface(); }
+
+    /**
+     * @return hop count learned from RIP; 0 for static and connected routes
+     */
+    public int getMetric()
+    { return this.metric; }
 
-    public void setInterface(Iface iface)
-    { this.iface = iface; }
+    /**
+     * @return number of equal-cost next hops
+     */
+    public int getNextHopCount()
+    { return this.nextHops.length; }
+
+    /**
+     * @param index index of the next hop, 0 being the primary
+     * @return the next hop
+     */
+    public NextHop getNextHop(int index)
+    { return this.nextHops[index]; }
+
+    /**
+     * Choose the next hop for a flow. Every packet of a flow gets the same
+     * next hop, so flows are spread across paths without being reordered.
+     * @param flowHash hash of the fields identifying the flow
+     * @return the next hop
+     */
+    public NextHop selectNextHop(int flowHash)
+    {
+	NextHop[] nextHops = this.nextHops;
+	if (1 == nextHops.length)
+	{ return nextHops[0]; }
+	return nextHops[(int)((flowHash & 0xffffffffL) % nextHops.length)];
+    }
+
+    /**
+     * @param nextHop next hop to add
+     * @return an entry with the next hop added, or this entry if it already
+     *         has the next hop
+     */
+    public RouteEntry withNextHop(NextHop nextHop)
+    {
+	for (NextHop existing : this.nextHops)
+	{
+	    if (existing.equals(nextHop))
+	    { return this; }
+	}
+	NextHop[] nextHops = Arrays.copyOf(this.nextHops,
+		this.nextHops.length + 1);
+	nextHops[nextHops.length - 1] = nextHop;
+	return new RouteEntry(this.destinationAddress, this.maskAddress,
+		nextHops, this.metric);
+    }
+
+    /**
+     * @param nextHop next hop to remove
+     * @return an entry without the next hop, or this entry if it does not
+     *         have the next hop or has no other; an entry always keeps at
+     *         least one next hop
+     */
+    public RouteEntry withoutNextHop(NextHop nextHop)
+    {
+	if (1 == this.nextHops.length)
+	{ return this; }
+	NextHop[] nextHops = new NextHop[this.nextHops.length - 1];
+	int count = 0;
+	for (NextHop existing : this.nextHops)
+	{
+	    if (existing.equals(nextHop))
+	    { continue; }
+	    if (count == nextHops.length)
+	    { return this; }
+	    nextHops[count++] = existing;
+	}
+	return new RouteEntry(this.destinationAddress, this.maskAddress,
+		nextHops, this.metric);
+    }
 
     public String toString()
     {
-	return String.format("%s \t%s \t%s \t%s",
-		IPv4.fromIPv4Address(this.destinationAddress),
-		IPv4.fromIPv4Address(this.gatewayAddress),
-		IPv4.fromIPv4Address(this.maskAddress),
-		this.iface.getName());
+	StringBuilder result = new StringBuilder();
+	for (NextHop nextHop : this.nextHops)
+	{
+	    if (result.length() > 0)
+	    { result.append("\n"); }
+	    result.append(String.format("%s \t%s \t%s \t%s",
+		    IPv4.fromIPv4Address(this.destinationAddress),
+		    IPv4.fromIPv4Address(nextHop.getGatewayAddress()),
+		    IPv4.fromIPv4Address(this.maskAddress),
+		    nextHop.getInterface().getName()));
+	}
+	return result.toString();
     }
 }
@@ -0,0 +1,141 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+/**
+ * Hash index of routes by exact prefix, used for finding, removing and
+ * updating a route in constant time. Keys pack the masked destination and
+ * the subnet mask into a long, so lookups do not box. Uses open addressing
+ * with linear probing. Not thread safe; a route table only touches it while
+ * holding its write lock.
+ */
+class RouteIndex
+{
+    /** Initial number of slots; always a power of two */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** Keys of the routes in each slot */
+    private long[] keys;
+
+    /** Route in each slot; null if the slot is empty */
+    private RouteEntry[] values;
+
+    /** Number of routes in the index */
+    private int size;
+
+    RouteIndex()
+    { this.clear(); }
+
+    /**
+     * @param dstIp destination IP
+     * @param maskIp subnet mask
+     * @return key for the prefix
+     */
+    static long key(int dstIp, int maskIp)
+    { return ((long)(dstIp & maskIp) << 32) | (maskIp & 0xffffffffL); }
+
+    private int slot(long key)
+    {
+	long hash = key * 0x9E3779B97F4A7C15L;
+	return (int)(hash >>> 32) & (this.keys.length - 1);
+    }
+
+    /**
+     * Find the route for an exact prefix.
+     * @return the route, null if none exists
+     */
+    RouteEntry get(int dstIp, int maskIp)
+    {
+	long key = key(dstIp, maskIp);
+	int mask = this.keys.length - 1;
+	for (int i = this.slot(key); this.values[i] != null; i = (i + 1) & mask)
+	{
+	    if (this.keys[i] == key)
+	    { return this.values[i]; }
+	}
+	return null;
+    }
+
+    /**
+     * Add a route, replacing any route for the same prefix.
+     */
+    void put(RouteEntry entry)
+    {
+	long key = key(entry.getDestinationAddress(), entry.getMaskAddress());
+	int mask = this.keys.length - 1;
+	int i = this.slot(key);
+	for (; this.values[i] != null; i = (i + 1) & mask)
+	{
+	    if (this.keys[i] == key)
+	    {
+		this.values[i] = entry;
+		return;
+	    }
+	}
+	this.keys[i] = key;
+	this.values[i] = entry;
+	this.size++;
+	if (this.size * 2 > this.keys.length)
+	{ this.resize(this.keys.length * 2); }
+    }
+
+    /**
+     * Remove the route for an exact prefix, if one exists.
+     */
+    void remove(int dstIp, int maskIp)
+    {
+	long key = key(dstIp, maskIp);
+	int mask = this.keys.length - 1;
+	int i = this.slot(key);
+	for (; this.values[i] != null; i = (i + 1) & mask)
+	{
+	    if (this.keys[i] == key)
+	    { break; }
+	}
+	if (null == this.values[i])
+	{ return; }
+	this.values[i] = null;
+	this.size--;
+
+	// Shift later routes in the probe sequence back into the gap
+	int gap = i;
+	for (int j = (i + 1) & mask; this.values[j] != null; j = (j + 1) & mask)
+	{
+	    int home = this.slot(this.keys[j]);
+	    if (((j - home) & mask) >= ((j - gap) & mask))
+	    {
+		this.keys[gap] = this.keys[j];
+		this.values[gap] = this.values[j];
+		this.values[j] = null;
+		gap = j;
+	    }
+	}
+    }
+
+    /**
+     * Remove all routes.
+     */
+    void clear()
+    {
+	this.keys = new long[INITIAL_CAPACITY];
+	this.values = new RouteEntry[INITIAL_CAPACITY];
+	this.size = 0;
+    }
+
+    private void resize(int capacity)
+    {
+	long[] oldKeys = this.keys;
+	RouteEntry[] oldValues = this.values;
+	this.keys = new long[capacity];
+	this.values = new RouteEntry[capacity];
+	int mask = capacity - 1;
+	for (int j = 0; j < oldValues.length; j++)
+	{
+	    if (null == oldValues[j])
+	    { continue; }
+	    int i = this.slot(oldKeys[j]);
+	    while (this.values[i] != null)
+	    { i = (i + 1) & mask; }
+	    this.keys[i] = oldKeys[j];
+	    this.values[i] = oldValues[j];
+	}
+    }
+}
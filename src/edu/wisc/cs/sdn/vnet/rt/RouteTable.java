@@ -1,35 +1,80 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
-import java.io.IOException;
-import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicReference;
 
 import net.floodlightcontroller.packet.IPv4;
 
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
 
 /**
- * Route table for a router.
+ * Route table for a router. Lookups read an immutable snapshot of the table
+ * and never block; changes build a new snapshot and publish it atomically.
  * @author Aaron Gember-Jacobson
  */
 public class RouteTable 
 {
-    /** Entries in the route table */
-    private List<RouteEntry> entries; 
+    /** log2 of the number of lookup results cached */
+    private static final int CACHE_BITS = 10;
+
+    /** Current forwarding snapshot; replaced as a whole on every change */
+    private final AtomicReference<Fib> fib;
+
+    /** Serializes changes to the table; lookups never take it */
+    private final Object writeLock;
+
+    /** Whether new snapshots use a DIR-24-8 table; guarded by writeLock */
+    private boolean directIndexed;
+
+    /** Generation of the current snapshot; guarded by writeLock */
+    private int generation;
+
+    /** Entries of the current snapshot by exact prefix; guarded by 
+     *  writeLock */
+    private final RouteIndex index;
+
+    /** Recent lookup results for trie-based snapshots */
+    private final RouteCache cache;
 
     /**
      * Initialize an empty route table.
      */
     public RouteTable()
-    { this.entries = new LinkedList<RouteEntry>(); }
+    { 
+	this.fib = new AtomicReference<Fib>(Fib.EMPTY); 
+	this.writeLock = new Object();
+	this.index = new RouteIndex();
+	this.cache = new RouteCache(CACHE_BITS);
+    }
+
+    /**
+     * Choose the structure used for lookups. A DIR-24-8 table answers a
+     * lookup in one or two memory accesses, but is rebuilt on every change
+     * and takes over 64 MB, so it is best for large static tables.
+     * @param directIndexed true to use a DIR-24-8 table, false to use a trie
+     */
+    public void setDirectIndexed(boolean directIndexed)
+    {
+	synchronized(this.writeLock)
+	{
+	    this.directIndexed = directIndexed;
+	    this.publish(this.fib.get().getTrie());
+	}
+    }
 
+    /**
+     * @return true if lookups use a DIR-24-8 table
+     */
+    public boolean isDirectIndexed()
+    { return this.fib.get().isDirectIndexed(); }
+
+    /**
+     * @return unmodifiable snapshot of the entries in the route table
+     */
     public List<RouteEntry> getEntries() {
-	return this.entries;
+	return this.fib.get().getEntries();
     }
 
 
@@ -40,178 +85,91 @@ public class RouteTable
      */
     public RouteEntry lookup(int ip)
     {
-	synchronized(this.entries)
-	{
-	    /*****************************************************************/
-	    /* TODO: Find the route entry with the longest prefix match      */
-
-	    System.out.println("Inside routeTable lookup. ip: " + IPv4.fromIPv4Address(ip));
-	    RouteEntry bestMatch = null;
-	    for (RouteEntry entry : this.entries)
-	    {
-		int maskedDst = ip & entry.getMaskAddress();
-		int entrySubnet = entry.getDestinationAddress() 
-		    & entry.getMaskAddress();
-		System.out.println("maskedDst: " + IPv4.fromIPv4Address(maskedDst));
-		System.out.println("entrySubnet: " + IPv4.fromIPv4Address(entrySubnet));
-		if (maskedDst == entrySubnet)
-		{
-		    System.out.println("Subnet number is equal");
-		    if ((null == bestMatch) 
-			    || (entry.getMaskAddress() > bestMatch.getMaskAddress()))
-		    { bestMatch = entry; }
-		}
-	    }
-
-	    return bestMatch;
-
-	    /*****************************************************************/
-	}
+	if (Log.isTraceEnabled())
+	{ Log.trace("Inside routeTable lookup. ip: " + IPv4.fromIPv4Address(ip)); }
+	Fib fib = this.fib.get();
+	if (fib.isDirectIndexed())
+	{ return fib.lookup(ip); }
+	return this.cache.lookup(fib, ip);
     }
 
     /**
-     * Populate the route table from a file.
+     * Populate the route table from a file. Entries are added in a single
+     * batch, so a file that fails to load leaves the table unchanged.
      * @param filename name of the file containing the static route table
      * @param router the route table is associated with
      * @return true if route table was successfully loaded, otherwise false
      */
     public boolean load(String filename, Router router)
     {
-	// Open the file
-	BufferedReader reader;
-	try 
-	{
-	    FileReader fileReader = new FileReader(filename);
-	    reader = new BufferedReader(fileReader);
-	}
-	catch (FileNotFoundException e) 
-	{
-	    System.err.println(e.toString());
-	    return false;
-	}
-
-	while (true)
-	{
-	    // Read a route entry from the file
-	    String line = null;
-	    try 
-	    { line = reader.readLine(); }
-	    catch (IOException e) 
-	    {
-		System.err.println(e.toString());
-		try { reader.close(); } catch (IOException f) {};
-		return false;
-	    }
-
-	    // Stop if we have reached the end of the file
-	    if (null == line)
-	    { break; }
-
-	    // Parse fields for route entry
-	    String ipPattern = "(\\d+\\.\\d+\\.\\d+\\.\\d+)";
-	    String ifacePattern = "([a-zA-Z0-9]+)";
-	    Pattern pattern = Pattern.compile(String.format(
-			"%s\\s+%s\\s+%s\\s+%s", 
-			ipPattern, ipPattern, ipPattern, ifacePattern));
-	    Matcher matcher = pattern.matcher(line);
-	    if (!matcher.matches() || matcher.groupCount() != 4)
-	    {
-		System.err.println("Invalid entry in routing table file");
-		try { reader.close(); } catch (IOException f) {};
-		return false;
-	    }
-
-	    int dstIp = IPv4.toIPv4Address(matcher.group(1));
-	    if (0 == dstIp)
-	    {
-		System.err.println("Error loading route table, cannot convert "
-			+ matcher.group(1) + " to valid IP");
-		try { reader.close(); } catch (IOException f) {};
-		return false;
-	    }
-
-	    int gwIp = IPv4.toIPv4Address(matcher.group(2));
-
-	    int maskIp = IPv4.toIPv4Address(matcher.group(3));
-	    if (0 == maskIp)
-	    {
-		System.err.println("Error loading route table, cannot convert "
-			+ matcher.group(3) + " to valid IP");
-		try { reader.close(); } catch (IOException f) {};
-		return false;
-	    }
-
-	    String ifaceName = matcher.group(4).trim();
-	    Iface iface = router.getInterface(ifaceName);
-	    if (null == iface)
-	    {
-		System.err.println("Error loading route table, invalid interface "
-			+ matcher.group(4));
-		try { reader.close(); } catch (IOException f) {};
-		return false;
-	    }
-
-	    // Add an entry to the route table
-	    this.insert(dstIp, gwIp, maskIp, iface);
-	}
-
-	// Close the file
-	try { reader.close(); } catch (IOException f) {};
+	long start = System.nanoTime();
+	Batch batch = this.beginBatch();
+	if (!RouteTableLoader.loadFile(filename, router, batch))
+	{ return false; }
+	int count = batch.size();
+	batch.commit();
+	reportLoad(count, start);
 	return true;
     }
 
+    /**
+     * Populate the route table from a string with entries separated by '#'.
+     * @param table the route table
+     * @param router the route table is associated with
+     * @return true if route table was successfully loaded, otherwise false
+     */
     public boolean loadFromString(String table, Router router) {
-	String [] lines = table.split("#");
-
-	for (String line : lines) {
-	    // Parse fields for route entry
-	    String ipPattern = "(\\d+\\.\\d+\\.\\d+\\.\\d+)";
-	    String ifacePattern = "([a-zA-Z0-9]+)";
-	    Pattern pattern = Pattern.compile(String.format(
-			"%s\\s+%s\\s+%s\\s+%s", 
-			ipPattern, ipPattern, ipPattern, ifacePattern));
-	    Matcher matcher = pattern.matcher(line);
-	    if (!matcher.matches() || matcher.groupCount() != 4)
-	    {
-		System.err.println("Invalid entry in routing table file");
-		return false;
-	    }
-
-	    int dstIp = IPv4.toIPv4Address(matcher.group(1));
-	    if (0 == dstIp)
-	    {
-		System.err.println("Error loading route table, cannot convert "
-			+ matcher.group(1) + " to valid IP");
-		return false;
-	    }
-
-	    int gwIp = IPv4.toIPv4Address(matcher.group(2));
+	long start = System.nanoTime();
+	Batch batch = this.beginBatch();
+	if (!RouteTableLoader.loadString(table, router, batch))
+	{ return false; }
+	int count = batch.size();
+	batch.commit();
+	reportLoad(count, start);
+	return true;
+    }
 
-	    int maskIp = IPv4.toIPv4Address(matcher.group(3));
-	    if (0 == maskIp)
-	    {
-		System.err.println("Error loading route table, cannot convert "
-			+ matcher.group(3) + " to valid IP");
-		return false;
-	    }
+    /**
+     * Populate the route table from a binary snapshot written by 
+     * {@link #saveSnapshot(String)}. The snapshot is memory mapped and its
+     * routes added in a single batch.
+     * @param filename name of the snapshot file
+     * @param router the route table is associated with
+     * @return true if route table was successfully loaded, otherwise false
+     */
+    public boolean loadSnapshot(String filename, Router router)
+    {
+	long start = System.nanoTime();
+	List<RouteEntry> entries = RouteTableFile.read(filename, router);
+	if (null == entries)
+	{ return false; }
+	Batch batch = this.beginBatch();
+	for (RouteEntry entry : entries)
+	{ batch.insert(entry); }
+	batch.commit();
+	reportLoad(entries.size(), start);
+	return true;
+    }
 
-	    String ifaceName = matcher.group(4).trim();
-	    Iface iface = router.getInterface(ifaceName);
-	    if (null == iface)
-	    {
-		System.err.println("Error loading route table, invalid interface "
-			+ matcher.group(4));
-		return false;
-	    }
+    /**
+     * Write the current entries of the route table to a binary snapshot.
+     * @param filename name of the snapshot file
+     * @return true if the snapshot was written, otherwise false
+     */
+    public boolean saveSnapshot(String filename)
+    { return RouteTableFile.write(filename, this.getEntries()); }
 
-	    // Add an entry to the route table
-	    this.insert(dstIp, gwIp, maskIp, iface);
-	}
-	return true;
+    private static void reportLoad(int count, long startNanos)
+    {
+	double seconds = (System.nanoTime() - startNanos) / 1e9;
+	Log.info(String.format(
+		    "Loaded %d route entries in %.3f ms (%.0f entries/s)",
+		    count, seconds * 1e3, (seconds > 0) ? count / seconds : 0.0));
     }
 
     /**
-     * Add an entry to the route table.
+     * Add an entry to the route table, replacing any entry with the same
+     * destination and mask.
      * @param dstIp destination IP
      * @param gwIp gateway IP
      * @param maskIp subnet mask
@@ -219,12 +177,72 @@ public class RouteTable
      *        destination or gateway
      */
     public void insert(int dstIp, int gwIp, int maskIp, Iface iface)
+    { this.insert(dstIp, gwIp, maskIp, iface, 0); }
+
+    /**
+     * Add an entry learned from RIP to the route table, replacing any entry
+     * with the same destination and mask.
+     * @param dstIp destination IP
+     * @param gwIp gateway IP
+     * @param maskIp subnet mask
+     * @param iface router interface out which to send packets to reach the 
+     *        destination or gateway
+     * @param metric hop count to the destination
+     */
+    public void insert(int dstIp, int gwIp, int maskIp, Iface iface, 
+	    int metric)
+    {
+	RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface, metric);
+	synchronized(this.writeLock)
+	{ this.publish(this.insert(this.fib.get().getTrie(), entry)); }
+    }
+
+    /**
+     * Add an equal-cost next hop learned from RIP. If the entry for the
+     * destination and mask has the same metric, the next hop joins its 
+     * group; otherwise the entry is replaced by one with only this next hop.
+     * @param dstIp destination IP
+     * @param gwIp gateway IP
+     * @param maskIp subnet mask
+     * @param iface router interface out which to send packets to reach the 
+     *        gateway
+     * @param metric hop count to the destination
+     */
+    public void addNextHop(int dstIp, int gwIp, int maskIp, Iface iface, 
+	    int metric)
+    {
+	RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface, metric);
+	synchronized(this.writeLock)
+	{ 
+	    RouteTrie trie = this.fib.get().getTrie();
+	    RouteTrie updated = this.addNextHop(trie, entry);
+	    if (updated != trie)
+	    { this.publish(updated); }
+	}
+    }
+
+    /**
+     * Take a next hop out of an entry's equal-cost group, such as when the
+     * metric RIP learned through it rises. The entry's last next hop is 
+     * never removed.
+     * @param dstIp destination IP
+     * @param gwIp gateway IP of the next hop
+     * @param maskIp subnet mask
+     * @param iface router interface of the next hop
+     * @return true if the next hop was removed, otherwise false
+     */
+    public boolean removeNextHop(int dstIp, int gwIp, int maskIp, Iface iface)
     {
 	RouteEntry entry = new RouteEntry(dstIp, gwIp, maskIp, iface);
-	synchronized(this.entries)
+	synchronized(this.writeLock)
 	{ 
-	    this.entries.add(entry);
+	    RouteTrie trie = this.fib.get().getTrie();
+	    RouteTrie updated = this.removeNextHop(trie, entry);
+	    if (updated == trie)
+	    { return false; }
+	    this.publish(updated);
 	}
+	return true;
     }
 
     /**
@@ -235,12 +253,11 @@ public class RouteTable
      */
     public boolean remove(int dstIp, int maskIp)
     { 
-	synchronized(this.entries)
+	synchronized(this.writeLock)
 	{
-	    RouteEntry entry = this.find(dstIp, maskIp);
-	    if (null == entry)
+	    if (null == this.index.get(dstIp, maskIp))
 	    { return false; }
-	    this.entries.remove(entry);
+	    this.publish(this.remove(this.fib.get().getTrie(), dstIp, maskIp));
 	}
 	return true;
     }
@@ -256,48 +273,301 @@ public class RouteTable
     public boolean update(int dstIp, int maskIp, int gwIp, 
 	    Iface iface)
     {
-	synchronized(this.entries)
+	synchronized(this.writeLock)
 	{
-	    RouteEntry entry = this.find(dstIp, maskIp);
-	    if (null == entry)
+	    if (null == this.index.get(dstIp, maskIp))
 	    { return false; }
-	    entry.setGatewayAddress(gwIp);
-	    entry.setInterface(iface);
+	    this.publish(this.update(this.fib.get().getTrie(), dstIp, maskIp,
+			gwIp, iface));
 	}
 	return true;
     }
 
     /**
-     * Find an entry in the route table.
-     * @param dstIP destination IP of the entry to find
-     * @param maskIp subnet mask of the entry to find
-     * @return a matching entry if one was found, otherwise null
+     * Add an entry to a trie and the index. Must be called while holding
+     * the write lock.
+     * @return a trie containing the entry
+     */
+    private RouteTrie insert(RouteTrie trie, RouteEntry entry)
+    {
+	this.index.put(entry);
+	return trie.insert(entry);
+    }
+
+    /**
+     * Add the next hop of an entry to the group of the existing entry with
+     * the same prefix and metric, or insert the entry if there is none.
+     * Must be called while holding the write lock.
+     * @return a trie containing the next hop, or the same trie if it was
+     *         already present
+     */
+    private RouteTrie addNextHop(RouteTrie trie, RouteEntry entry)
+    {
+	RouteEntry existing = this.index.get(entry.getDestinationAddress(),
+		entry.getMaskAddress());
+	if (null == existing || existing.getMetric() != entry.getMetric())
+	{ return this.insert(trie, entry); }
+	RouteEntry updated = existing.withNextHop(entry.getNextHop(0));
+	if (updated == existing)
+	{ return trie; }
+	return this.insert(trie, updated);
+    }
+
+    /**
+     * Take the next hop of an entry out of the group of the existing entry
+     * with the same prefix. Must be called while holding the write lock.
+     * @return a trie without the next hop, or the same trie if there was 
+     *         nothing to remove
+     */
+    private RouteTrie removeNextHop(RouteTrie trie, RouteEntry entry)
+    {
+	RouteEntry existing = this.index.get(entry.getDestinationAddress(),
+		entry.getMaskAddress());
+	if (null == existing)
+	{ return trie; }
+	RouteEntry updated = existing.withoutNextHop(entry.getNextHop(0));
+	if (updated == existing)
+	{ return trie; }
+	return this.insert(trie, updated);
+    }
+
+    /**
+     * Remove an entry from a trie and the index. Must be called while 
+     * holding the write lock.
+     * @return a trie without the entry
+     */
+    private RouteTrie remove(RouteTrie trie, int dstIp, int maskIp)
+    {
+	if (null == this.index.get(dstIp, maskIp))
+	{ return trie; }
+	this.index.remove(dstIp, maskIp);
+	return trie.remove(dstIp, maskIp);
+    }
+
+    /**
+     * Replace the gateway and interface of an entry. Entries are never 
+     * modified in place, since older snapshots may still refer to them.
+     * Must be called while holding the write lock.
+     * @return a trie with the entry updated, or the same trie if no entry
+     *         matches
+     */
+    private RouteTrie update(RouteTrie trie, int dstIp, int maskIp, 
+	    int gwIp, Iface iface)
+    {
+	RouteEntry entry = this.index.get(dstIp, maskIp);
+	if (null == entry)
+	{ return trie; }
+	return this.insert(trie, new RouteEntry(entry.getDestinationAddress(), 
+			gwIp, maskIp, iface, entry.getMetric()));
+    }
+
+    /**
+     * Make a trie the current forwarding snapshot. Must be called while
+     * holding the write lock. The new generation invalidates all cached
+     * lookup results.
      */
-    private RouteEntry find(int dstIp, int maskIp)
+    private void publish(RouteTrie trie)
+    { 
+	this.generation++;
+	this.fib.set(new Fib(trie, this.directIndexed, this.generation)); 
+    }
+
+    /**
+     * Start a batch of changes to the route table. None of the changes are
+     * visible to lookups until the batch is committed.
+     * @return an empty batch
+     */
+    public Batch beginBatch()
+    { return new Batch(this); }
+
+    /**
+     * A set of changes applied to a route table as a single update. Changes
+     * are buffered until {@link #commit()}, which applies all of them to the
+     * latest snapshot and publishes the result at once.
+     */
+    public static class Batch
     {
-	synchronized(this.entries)
+	private static final int INSERT = 0;
+	private static final int REMOVE = 1;
+	private static final int UPDATE = 2;
+	private static final int ADD_NEXT_HOP = 3;
+	private static final int REMOVE_NEXT_HOP = 4;
+
+	/** A buffered change; the entry holds its arguments */
+	private static class Change
 	{
-	    for (RouteEntry entry : this.entries)
+	    final int type;
+	    final RouteEntry entry;
+
+	    Change(int type, RouteEntry entry)
 	    {
-		if ((entry.getDestinationAddress() == dstIp)
-			&& (entry.getMaskAddress() == maskIp)) 
-		{ return entry; }
+		this.type = type;
+		this.entry = entry;
 	    }
 	}
-	return null;
-    }
 
-    public String toString()
-    {
-	synchronized(this.entries)
+	/** Route table the batch applies to */
+	private final RouteTable table;
+
+	/** Changes in the order they were made */
+	private final List<Change> changes;
+
+	/** Whether every change in the batch is an insert */
+	private boolean insertsOnly;
+
+	private Batch(RouteTable table)
+	{
+	    this.table = table;
+	    this.changes = new ArrayList<Change>();
+	    this.insertsOnly = true;
+	}
+
+	/**
+	 * Add an entry, replacing any entry with the same destination and mask.
+	 * @see RouteTable#insert(int, int, int, Iface)
+	 */
+	public void insert(int dstIp, int gwIp, int maskIp, Iface iface)
+	{ this.insert(dstIp, gwIp, maskIp, iface, 0); }
+
+	/**
+	 * Add an entry learned from RIP, replacing any entry with the same 
+	 * destination and mask.
+	 * @see RouteTable#insert(int, int, int, Iface, int)
+	 */
+	public void insert(int dstIp, int gwIp, int maskIp, Iface iface, 
+		int metric)
+	{ 
+	    this.insert(new RouteEntry(dstIp, gwIp, maskIp, iface, metric)); 
+	}
+
+	/**
+	 * Add an entry, replacing any entry with the same destination and mask.
+	 */
+	void insert(RouteEntry entry)
+	{ this.changes.add(new Change(INSERT, entry)); }
+
+	/**
+	 * Add an equal-cost next hop learned from RIP.
+	 * @see RouteTable#addNextHop(int, int, int, Iface, int)
+	 */
+	public void addNextHop(int dstIp, int gwIp, int maskIp, Iface iface,
+		int metric)
+	{
+	    this.changes.add(new Change(ADD_NEXT_HOP, 
+			new RouteEntry(dstIp, gwIp, maskIp, iface, metric)));
+	    this.insertsOnly = false;
+	}
+
+	/**
+	 * Take a next hop out of an entry's equal-cost group.
+	 * @see RouteTable#removeNextHop(int, int, int, Iface)
+	 */
+	public void removeNextHop(int dstIp, int gwIp, int maskIp, Iface iface)
+	{
+	    this.changes.add(new Change(REMOVE_NEXT_HOP, 
+			new RouteEntry(dstIp, gwIp, maskIp, iface)));
+	    this.insertsOnly = false;
+	}
+
+	/**
+	 * Remove an entry, if one exists.
+	 * @see RouteTable#remove(int, int)
+	 */
+	public void remove(int dstIp, int maskIp)
 	{ 
-	    if (0 == this.entries.size())
-	    { return " WARNING: route table empty"; }
+	    this.changes.add(new Change(REMOVE, 
+			new RouteEntry(dstIp, 0, maskIp, null))); 
+	    this.insertsOnly = false;
+	}
+
+	/**
+	 * Update an entry, if one exists.
+	 * @see RouteTable#update(int, int, int, Iface)
+	 */
+	public void update(int dstIp, int maskIp, int gwIp, Iface iface)
+	{ 
+	    this.changes.add(new Change(UPDATE, 
+			new RouteEntry(dstIp, gwIp, maskIp, iface))); 
+	    this.insertsOnly = false;
+	}
 
-	    String result = "Destination\tGateway\t\tMask\t\tIface\n";
-	    for (RouteEntry entry : entries)
-	    { result += entry.toString()+"\n"; }
-	    return result;
+	/**
+	 * @return number of changes in the batch
+	 */
+	public int size()
+	{ return this.changes.size(); }
+
+	/**
+	 * Apply all changes in the batch and publish the resulting snapshot.
+	 * The batch is empty afterwards.
+	 */
+	public void commit()
+	{
+	    if (this.changes.isEmpty())
+	    { return; }
+	    synchronized(this.table.writeLock)
+	    {
+		RouteTrie trie = this.table.fib.get().getTrie();
+		if (0 == trie.size() && this.insertsOnly)
+		{
+		    // Loading an empty table; build the trie in one pass
+		    List<RouteEntry> entries = 
+			new ArrayList<RouteEntry>(this.changes.size());
+		    for (Change change : this.changes)
+		    {
+			entries.add(change.entry);
+		    }
+		    this.table.index.clear();
+		    for (RouteEntry entry : entries)
+		    { this.table.index.put(entry); }
+		    this.table.publish(RouteTrie.build(entries));
+		    this.changes.clear();
+		    return;
+		}
+		for (Change change : this.changes)
+		{
+		    switch (change.type)
+		    {
+		    case INSERT:
+			trie = this.table.insert(trie, change.entry);
+			break;
+		    case REMOVE:
+			trie = this.table.remove(trie, 
+				change.entry.getDestinationAddress(),
+				change.entry.getMaskAddress());
+			break;
+		    case UPDATE:
+			trie = this.table.update(trie, 
+				change.entry.getDestinationAddress(),
+				change.entry.getMaskAddress(), 
+				change.entry.getGatewayAddress(), 
+				change.entry.getInterface());
+			break;
+		    case ADD_NEXT_HOP:
+			trie = this.table.addNextHop(trie, change.entry);
+			break;
+		    case REMOVE_NEXT_HOP:
+			trie = this.table.removeNextHop(trie, change.entry);
+			break;
+		    }
+		}
+		this.table.publish(trie);
+	    }
+	    this.changes.clear();
+	    this.insertsOnly = true;
 	}
     }
+
+    public String toString()
+    {
+	List<RouteEntry> entries = this.getEntries();
+	if (0 == entries.size())
+	{ return " WARNING: route table empty"; }
+
+	StringBuilder result = 
+	    new StringBuilder("Destination\tGateway\t\tMask\t\tIface\n");
+	for (RouteEntry entry : entries)
+	{ result.append(entry.toString()).append("\n"); }
+	return result.toString();
+    }
 }
@@ -0,0 +1,205 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Binary snapshot of a route table, read and written through a memory-mapped
+ * file so a router can restore its table without parsing text.
+ *
+ * The file starts with a header: magic number, format version, number of
+ * interface names, each name as a length byte followed by ASCII characters,
+ * and the number of records. Fixed-size records follow, each holding the
+ * destination, subnet mask, gateway, interface index and metric of one 
+ * next hop as big-endian ints; the next hops of a route are adjacent.
+ */
+class RouteTableFile
+{
+    /** Identifies route table snapshots ("VRTB") */
+    private static final int MAGIC = 0x56525442;
+
+    /** Version of the format written */
+    private static final int VERSION = 1;
+
+    /** Size of a route record in bytes */
+    private static final int RECORD_SIZE = 20;
+
+    /**
+     * Read the routes from a snapshot.
+     * @param filename name of the snapshot file
+     * @param router router whose interfaces the routes refer to
+     * @return the routes, or null if the snapshot could not be read
+     */
+    static List<RouteEntry> read(String filename, Router router)
+    {
+	MappedByteBuffer buf;
+	try (FileChannel channel = FileChannel.open(Paths.get(filename),
+		    StandardOpenOption.READ))
+	{ buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()); }
+	catch (IOException e)
+	{
+	    System.err.println(e.toString());
+	    return null;
+	}
+
+	try
+	{
+	    if (buf.getInt() != MAGIC || buf.getInt() != VERSION)
+	    {
+		System.err.println("Error loading route table snapshot, "
+			+ filename + " is not a route table snapshot");
+		return null;
+	    }
+
+	    Iface[] ifaces = new Iface[buf.getInt()];
+	    for (int i = 0; i < ifaces.length; i++)
+	    {
+		byte[] name = new byte[buf.get() & 0xff];
+		buf.get(name);
+		String ifaceName = new String(name, StandardCharsets.US_ASCII);
+		ifaces[i] = router.getInterface(ifaceName);
+		if (null == ifaces[i])
+		{
+		    System.err.println("Error loading route table snapshot, "
+			    + "invalid interface " + ifaceName);
+		    return null;
+		}
+	    }
+
+	    int records = buf.getInt();
+	    if (records < 0 || (long)records * RECORD_SIZE != buf.remaining())
+	    {
+		System.err.println("Error loading route table snapshot, "
+			+ filename + " is truncated");
+		return null;
+	    }
+
+	    List<RouteEntry> entries = new ArrayList<RouteEntry>(records);
+	    RouteEntry last = null;
+	    for (int i = 0; i < records; i++)
+	    {
+		int dstIp = buf.getInt();
+		int maskIp = buf.getInt();
+		int gwIp = buf.getInt();
+		int ifaceIndex = buf.getInt();
+		int metric = buf.getInt();
+		if (ifaceIndex < 0 || ifaceIndex >= ifaces.length)
+		{
+		    System.err.println("Error loading route table snapshot, "
+			    + "invalid interface index " + ifaceIndex);
+		    return null;
+		}
+		NextHop nextHop = new NextHop(gwIp, ifaces[ifaceIndex]);
+
+		// Merge further next hops into the route they belong to
+		if (last != null && last.getDestinationAddress() == dstIp
+			&& last.getMaskAddress() == maskIp)
+		{
+		    last = last.withNextHop(nextHop);
+		    entries.set(entries.size() - 1, last);
+		    continue;
+		}
+		last = new RouteEntry(dstIp, maskIp, new NextHop[] { nextHop }, 
+			metric);
+		entries.add(last);
+	    }
+	    return entries;
+	}
+	catch (RuntimeException e)
+	{
+	    // Thrown by the buffer if the header runs past the end of the file
+	    System.err.println("Error loading route table snapshot, "
+		    + filename + " is truncated");
+	    return null;
+	}
+    }
+
+    /**
+     * Write routes to a snapshot. The snapshot is written to a temporary
+     * file and then moved into place, so readers never see a partial file.
+     * @param filename name of the snapshot file
+     * @param entries routes to write
+     * @return true if the snapshot was written, otherwise false
+     */
+    static boolean write(String filename, List<RouteEntry> entries)
+    {
+	// Number the interfaces the routes refer to
+	Map<String,Integer> ifaceIndexes = new LinkedHashMap<String,Integer>();
+	int headerSize = 16;
+	int records = 0;
+	for (RouteEntry entry : entries)
+	{
+	    for (int i = 0; i < entry.getNextHopCount(); i++)
+	    {
+		String name = entry.getNextHop(i).getInterface().getName();
+		if (!ifaceIndexes.containsKey(name))
+		{
+		    ifaceIndexes.put(name, ifaceIndexes.size());
+		    headerSize += 1 + name.length();
+		}
+	    }
+	    records += entry.getNextHopCount();
+	}
+	long size = headerSize + (long)records * RECORD_SIZE;
+
+	Path path = Paths.get(filename).toAbsolutePath();
+	Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+	try
+	{
+	    try (FileChannel channel = FileChannel.open(tmp,
+			StandardOpenOption.CREATE, StandardOpenOption.READ,
+			StandardOpenOption.WRITE,
+			StandardOpenOption.TRUNCATE_EXISTING))
+	    {
+		MappedByteBuffer buf = channel.map(
+			FileChannel.MapMode.READ_WRITE, 0, size);
+		buf.putInt(MAGIC);
+		buf.putInt(VERSION);
+		buf.putInt(ifaceIndexes.size());
+		for (String name : ifaceIndexes.keySet())
+		{
+		    byte[] bytes = name.getBytes(StandardCharsets.US_ASCII);
+		    buf.put((byte)bytes.length);
+		    buf.put(bytes);
+		}
+		buf.putInt(records);
+		for (RouteEntry entry : entries)
+		{
+		    for (int i = 0; i < entry.getNextHopCount(); i++)
+		    {
+			NextHop nextHop = entry.getNextHop(i);
+			buf.putInt(entry.getDestinationAddress());
+			buf.putInt(entry.getMaskAddress());
+			buf.putInt(nextHop.getGatewayAddress());
+			buf.putInt(ifaceIndexes.get(
+				    nextHop.getInterface().getName()));
+			buf.putInt(entry.getMetric());
+		    }
+		}
+		buf.force();
+	    }
+	    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+		    StandardCopyOption.ATOMIC_MOVE);
+	}
+	catch (IOException e)
+	{
+	    System.err.println(e.toString());
+	    try { Files.deleteIfExists(tmp); } catch (IOException f) {};
+	    return false;
+	}
+	return true;
+    }
+}
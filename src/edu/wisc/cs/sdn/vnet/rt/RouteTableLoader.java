@@ -0,0 +1,260 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import edu.wisc.cs.sdn.vnet.Iface;
+
+/**
+ * Parser for text route tables. Each entry holds a destination IP, gateway
+ * IP, subnet mask and interface name separated by whitespace. Entries are
+ * parsed straight from bytes, without regular expressions or a string per
+ * field, and added to a route table batch so the table is built in one pass.
+ */
+class RouteTableLoader
+{
+    /** Size of the buffer used to read route table files */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /** Router whose interfaces entries refer to */
+    private final Router router;
+
+    /** Batch entries are added to */
+    private final RouteTable.Batch batch;
+
+    /** Entry being parsed and the position of the parser within it */
+    private byte[] line;
+    private int pos;
+    private int end;
+
+    private RouteTableLoader(Router router, RouteTable.Batch batch)
+    {
+	this.router = router;
+	this.batch = batch;
+    }
+
+    /**
+     * Parse a route table file, one entry per line.
+     * @param filename name of the file containing the route table
+     * @param router router whose interfaces entries refer to
+     * @param batch batch to add entries to
+     * @return true if the whole file was parsed, otherwise false
+     */
+    static boolean loadFile(String filename, Router router,
+	    RouteTable.Batch batch)
+    {
+	RouteTableLoader loader = new RouteTableLoader(router, batch);
+	FileChannel channel;
+	try
+	{ channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ); }
+	catch (IOException e)
+	{
+	    System.err.println(e.toString());
+	    return false;
+	}
+
+	ByteBuffer buf = ByteBuffer.allocate(READ_BUFFER_SIZE);
+	byte[] data = buf.array();
+	try
+	{
+	    boolean eof = false;
+	    while (!eof)
+	    {
+		eof = (channel.read(buf) < 0);
+		int limit = buf.position();
+
+		// Parse every complete line in the buffer
+		int start = 0;
+		for (int i = 0; i < limit; i++)
+		{
+		    if (data[i] != '\n')
+		    { continue; }
+		    if (!loader.parse(data, start, i))
+		    { return false; }
+		    start = i + 1;
+		}
+
+		if (eof)
+		{ return loader.parse(data, start, limit); }
+		if (0 == start && limit == data.length)
+		{
+		    System.err.println("Invalid entry in routing table file");
+		    return false;
+		}
+
+		// Keep the partial line for the next read
+		System.arraycopy(data, start, data, 0, limit - start);
+		buf.position(limit - start);
+	    }
+	}
+	catch (IOException e)
+	{
+	    System.err.println(e.toString());
+	    return false;
+	}
+	finally
+	{ try { channel.close(); } catch (IOException f) {}; }
+	return true;
+    }
+
+    /**
+     * Parse a route table stored in a string, with entries separated by '#'.
+     * @param table the route table
+     * @param router router whose interfaces entries refer to
+     * @param batch batch to add entries to
+     * @return true if the whole table was parsed, otherwise false
+     */
+    static boolean loadString(String table, Router router,
+	    RouteTable.Batch batch)
+    {
+	RouteTableLoader loader = new RouteTableLoader(router, batch);
+	byte[] data = table.getBytes(StandardCharsets.US_ASCII);
+	int start = 0;
+	for (int i = 0; i <= data.length; i++)
+	{
+	    if (i < data.length && data[i] != '#')
+	    { continue; }
+	    if (!loader.parse(data, start, i))
+	    { return false; }
+	    start = i + 1;
+	}
+	return true;
+    }
+
+    /**
+     * Parse one entry and add it to the batch. Blank entries are ignored.
+     * @return true if the entry was valid, otherwise false
+     */
+    private boolean parse(byte[] line, int start, int end)
+    {
+	this.line = line;
+	this.pos = start;
+	this.end = end;
+
+	this.skipSpace();
+	if (this.pos == this.end)
+	{ return true; }
+
+	int dstStart = this.pos;
+	long dstIp = this.nextIp();
+	int gwStart = this.pos;
+	long gwIp = this.nextIp();
+	int maskStart = this.pos;
+	long maskIp = this.nextIp();
+	int nameStart = this.pos;
+	int nameEnd = this.nextName();
+	if (dstIp < 0 || gwIp < 0 || maskIp < 0 || nameEnd < 0
+		|| this.pos != this.end)
+	{
+	    System.err.println("Invalid entry in routing table file");
+	    return false;
+	}
+
+	if (0 == dstIp)
+	{
+	    System.err.println("Error loading route table, cannot convert "
+		    + this.text(dstStart, gwStart) + " to valid IP");
+	    return false;
+	}
+
+	if (0 == maskIp)
+	{
+	    System.err.println("Error loading route table, cannot convert "
+		    + this.text(maskStart, nameStart) + " to valid IP");
+	    return false;
+	}
+
+	String ifaceName = this.text(nameStart, nameEnd);
+	Iface iface = this.router.getInterface(ifaceName);
+	if (null == iface)
+	{
+	    System.err.println("Error loading route table, invalid interface "
+		    + ifaceName);
+	    return false;
+	}
+
+	this.batch.insert((int)dstIp, (int)gwIp, (int)maskIp, iface);
+	return true;
+    }
+
+    /**
+     * Parse a dotted-quad IP address followed by whitespace.
+     * @return the address, or -1 if the input is not a valid address
+     */
+    private long nextIp()
+    {
+	long ip = 0;
+	for (int octet = 0; octet < 4; octet++)
+	{
+	    if (octet > 0)
+	    {
+		if (this.pos >= this.end || this.line[this.pos] != '.')
+		{ return -1; }
+		this.pos++;
+	    }
+
+	    int value = 0;
+	    int digits = 0;
+	    while (this.pos < this.end && this.line[this.pos] >= '0'
+		    && this.line[this.pos] <= '9')
+	    {
+		value = value * 10 + (this.line[this.pos] - '0');
+		this.pos++;
+		if (++digits > 3)
+		{ return -1; }
+	    }
+	    if (0 == digits || value > 255)
+	    { return -1; }
+	    ip = (ip << 8) | value;
+	}
+
+	if (!this.skipSpace())
+	{ return -1; }
+	return ip;
+    }
+
+    /**
+     * Parse an interface name followed by optional whitespace.
+     * @return the end of the name, or -1 if there is no valid name
+     */
+    private int nextName()
+    {
+	int start = this.pos;
+	while (this.pos < this.end && isNameChar(this.line[this.pos]))
+	{ this.pos++; }
+	if (this.pos == start)
+	{ return -1; }
+	int nameEnd = this.pos;
+	this.skipSpace();
+	return nameEnd;
+    }
+
+    /**
+     * Skip whitespace.
+     * @return true if any whitespace was skipped
+     */
+    private boolean skipSpace()
+    {
+	int start = this.pos;
+	while (this.pos < this.end && (this.line[this.pos] == ' '
+		    || this.line[this.pos] == '\t' || this.line[this.pos] == '\r'))
+	{ this.pos++; }
+	return this.pos > start;
+    }
+
+    private static boolean isNameChar(byte b)
+    {
+	return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z')
+	    || (b >= '0' && b <= '9');
+    }
+
+    private String text(int start, int end)
+    {
+	return new String(this.line, start, end - start,
+		StandardCharsets.US_ASCII).trim();
+    }
+}
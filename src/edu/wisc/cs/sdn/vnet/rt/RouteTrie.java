@@ -0,0 +1,327 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Path-compressed binary trie (Patricia trie) over IPv4 prefixes, used by a
+ * route table for longest prefix match. Chains of single-child nodes are
+ * collapsed into one node, so a lookup visits at most 33 nodes no matter
+ * how many routes are in the table.
+ *
+ * Tries are immutable: insert and remove copy the path from the root to the
+ * changed node and share everything else with the original trie, so readers
+ * holding an older trie are never affected by an update.
+ */
+class RouteTrie
+{
+    /** The trie with no routes */
+    static final RouteTrie EMPTY = new RouteTrie(null, 0);
+
+    /** Subnet masks indexed by prefix length */
+    private static final int[] MASKS = new int[33];
+
+    static
+    {
+	for (int i = 1; i <= 32; i++)
+	{ MASKS[i] = -1 << (32 - i); }
+    }
+
+    /** A node in the trie */
+    private static class Node
+    {
+	/** Prefix covered by this node; bits past the length are zero */
+	final int prefix;
+
+	/** Number of significant bits in the prefix */
+	final int length;
+
+	/** Route for exactly this prefix; null if the node only branches */
+	final RouteEntry entry;
+
+	/** Subtrees whose next bit (after the prefix) is 0 and 1 */
+	final Node[] children;
+
+	Node(int prefix, int length, RouteEntry entry, Node zero, Node one)
+	{
+	    this.prefix = prefix & MASKS[length];
+	    this.length = length;
+	    this.entry = entry;
+	    this.children = new Node[] { zero, one };
+	}
+
+	Node withEntry(RouteEntry entry)
+	{ 
+	    return new Node(this.prefix, this.length, entry, this.children[0],
+		    this.children[1]); 
+	}
+
+	Node withChild(int b, Node child)
+	{
+	    return new Node(this.prefix, this.length, this.entry,
+		    (0 == b) ? child : this.children[0],
+		    (1 == b) ? child : this.children[1]);
+	}
+    }
+
+    /** Root of the trie; null if the trie is empty */
+    private final Node root;
+
+    /** Number of routes in the trie */
+    private final int size;
+
+    private RouteTrie(Node root, int size)
+    {
+	this.root = root;
+	this.size = size;
+    }
+
+    /**
+     * @return number of routes in the trie
+     */
+    int size()
+    { return this.size; }
+
+    /**
+     * Convert a subnet mask into a prefix length.
+     * @param mask subnet mask
+     * @return number of leading one bits in the mask
+     */
+    static int prefixLength(int mask)
+    { return Integer.numberOfLeadingZeros(~mask); }
+
+    /**
+     * @param addr IP address
+     * @param index bit index, 0 being the most significant bit
+     * @return the bit of the address at the index
+     */
+    private static int bit(int addr, int index)
+    { return (addr >>> (31 - index)) & 1; }
+
+    /**
+     * @return number of leading bits two addresses share, at most max
+     */
+    private static int commonLength(int a, int b, int max)
+    { return Math.min(max, Integer.numberOfLeadingZeros(a ^ b)); }
+
+    /**
+     * Find the route with the longest prefix matching an IP address.
+     * @param ip IP address
+     * @return the matching route entry, null if none exists
+     */
+    RouteEntry lookup(int ip)
+    {
+	RouteEntry bestMatch = null;
+	Node node = this.root;
+	while (node != null)
+	{
+	    if (((ip ^ node.prefix) & MASKS[node.length]) != 0)
+	    { break; }
+	    if (node.entry != null)
+	    { bestMatch = node.entry; }
+	    if (32 == node.length)
+	    { break; }
+	    node = node.children[bit(ip, node.length)];
+	}
+	return bestMatch;
+    }
+
+    /**
+     * Find the route for an exact prefix.
+     * @param dstIp destination IP
+     * @param maskIp subnet mask
+     * @return the route for the prefix, null if none exists
+     */
+    RouteEntry find(int dstIp, int maskIp)
+    {
+	int length = prefixLength(maskIp);
+	int prefix = dstIp & MASKS[length];
+	Node node = this.root;
+	while (node != null && node.length <= length)
+	{
+	    if (((prefix ^ node.prefix) & MASKS[node.length]) != 0)
+	    { return null; }
+	    if (node.length == length)
+	    { return node.entry; }
+	    node = node.children[bit(prefix, node.length)];
+	}
+	return null;
+    }
+
+    /**
+     * Add a route, replacing any route for the same prefix.
+     * @param entry route to add
+     * @return a trie containing the route
+     */
+    RouteTrie insert(RouteEntry entry)
+    {
+	int length = prefixLength(entry.getMaskAddress());
+	int prefix = entry.getDestinationAddress() & MASKS[length];
+	int size = this.size;
+	if (null == this.find(prefix, entry.getMaskAddress()))
+	{ size++; }
+	return new RouteTrie(insert(this.root, prefix, length, entry), size);
+    }
+
+    private static Node insert(Node node, int prefix, int length, 
+	    RouteEntry entry)
+    {
+	if (null == node)
+	{ return new Node(prefix, length, entry, null, null); }
+
+	int common = commonLength(node.prefix, prefix,
+		Math.min(node.length, length));
+	if (common == node.length)
+	{
+	    // The node's prefix covers the new prefix
+	    if (length == node.length)
+	    { return node.withEntry(entry); }
+	    int b = bit(prefix, node.length);
+	    return node.withChild(b, insert(node.children[b], prefix, length, 
+			entry));
+	}
+
+	// Prefixes diverge inside the node; split it at the common bits
+	Node leaf = (common == length) ? null 
+	    : new Node(prefix, length, entry, null, null);
+	Node zero = (0 == bit(node.prefix, common)) ? node : leaf;
+	Node one = (1 == bit(node.prefix, common)) ? node : leaf;
+	return new Node(prefix, common, (common == length) ? entry : null,
+		zero, one);
+    }
+
+    /**
+     * Build a trie from a set of routes in one pass, without the copying
+     * done by repeated inserts. If several routes have the same prefix, the
+     * last one in the list is kept.
+     * @param entries routes to include
+     * @return a trie containing the routes
+     */
+    static RouteTrie build(List<RouteEntry> entries)
+    {
+	// Sort by prefix, with shorter prefixes first; the sort is stable
+	RouteEntry[] sorted = entries.toArray(new RouteEntry[entries.size()]);
+	Arrays.sort(sorted, new Comparator<RouteEntry>() {
+	    public int compare(RouteEntry a, RouteEntry b)
+	    {
+		int cmp = Integer.compare(prefixOf(a) ^ Integer.MIN_VALUE, 
+			prefixOf(b) ^ Integer.MIN_VALUE);
+		if (cmp != 0)
+		{ return cmp; }
+		return prefixLength(a.getMaskAddress()) 
+		    - prefixLength(b.getMaskAddress());
+	    }
+	});
+
+	// Drop all but the last route for each prefix
+	int count = 0;
+	for (RouteEntry entry : sorted)
+	{
+	    if (count > 0 && prefixOf(sorted[count-1]) == prefixOf(entry)
+		    && sorted[count-1].getMaskAddress() == entry.getMaskAddress())
+	    { sorted[count-1] = entry; }
+	    else
+	    { sorted[count++] = entry; }
+	}
+
+	return new RouteTrie(build(sorted, 0, count), count);
+    }
+
+    /**
+     * Build the subtree for a range of sorted, distinct routes.
+     */
+    private static Node build(RouteEntry[] sorted, int from, int to)
+    {
+	if (from == to)
+	{ return null; }
+
+	// The node covers the bits shared by all prefixes in the range
+	int first = prefixOf(sorted[from]);
+	int length = 32;
+	for (int i = from; i < to; i++)
+	{ length = Math.min(length, prefixLength(sorted[i].getMaskAddress())); }
+	length = commonLength(first, prefixOf(sorted[to-1]), length);
+
+	// A route for the node's own prefix sorts first
+	RouteEntry entry = null;
+	if (prefixLength(sorted[from].getMaskAddress()) == length)
+	{ entry = sorted[from++]; }
+
+	// Split the rest of the range on the next bit
+	int middle = from;
+	while (middle < to && 0 == bit(prefixOf(sorted[middle]), length))
+	{ middle++; }
+	return new Node(first, length, entry, build(sorted, from, middle),
+		build(sorted, middle, to));
+    }
+
+    private static int prefixOf(RouteEntry entry)
+    { 
+	return entry.getDestinationAddress() 
+	    & MASKS[prefixLength(entry.getMaskAddress())]; 
+    }
+
+    /**
+     * Remove the route for an exact prefix.
+     * @param dstIp destination IP
+     * @param maskIp subnet mask
+     * @return a trie without a route for the prefix
+     */
+    RouteTrie remove(int dstIp, int maskIp)
+    {
+	if (null == this.find(dstIp, maskIp))
+	{ return this; }
+	int length = prefixLength(maskIp);
+	return new RouteTrie(remove(this.root, dstIp & MASKS[length], length),
+		this.size - 1);
+    }
+
+    private static Node remove(Node node, int prefix, int length)
+    {
+	if (null == node || node.length > length
+		|| ((prefix ^ node.prefix) & MASKS[node.length]) != 0)
+	{ return node; }
+
+	Node zero = node.children[0];
+	Node one = node.children[1];
+	RouteEntry entry = node.entry;
+	if (node.length == length)
+	{ entry = null; }
+	else if (0 == bit(prefix, node.length))
+	{ zero = remove(zero, prefix, length); }
+	else
+	{ one = remove(one, prefix, length); }
+
+	// Collapse nodes that no longer hold a route or branch
+	if (null == entry)
+	{
+	    if (null == zero)
+	    { return one; }
+	    if (null == one)
+	    { return zero; }
+	}
+	return new Node(node.prefix, node.length, entry, zero, one);
+    }
+
+    /**
+     * @return all routes in the trie, ordered by prefix
+     */
+    List<RouteEntry> entries()
+    {
+	List<RouteEntry> result = new ArrayList<RouteEntry>(this.size);
+	collect(this.root, result);
+	return result;
+    }
+
+    private static void collect(Node node, List<RouteEntry> result)
+    {
+	if (null == node)
+	{ return; }
+	if (node.entry != null)
+	{ result.add(node.entry); }
+	collect(node.children[0], result);
+	collect(node.children[1], result);
+    }
+}
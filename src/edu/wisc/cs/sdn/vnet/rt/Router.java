@@ -1,13 +1,16 @@
 package edu.wisc.cs.sdn.vnet.rt;
 
 import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.DeviceTasks;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
 import java.util.*;
 import java.util.concurrent.*;
 import net.floodlightcontroller.packet.Data;
 import net.floodlightcontroller.packet.*;
 import java.nio.ByteBuffer;
+import java.io.File;
 
 /**
  * @author Aaron Gember-Jacobson and Anubhavnidhi Abhashkumar
@@ -23,14 +26,42 @@ public class Router extends Device implements Runnable
     /** Queue for packets whose ARP is unavailable */
     private ArpQO arpObj;
 
+    /** Periodic task aging the ARP cache */
+    private ScheduledFuture<?> arpAgingTask;
+
+    /** Time (in milliseconds) between ARP cache aging sweeps */
+    private static final long ARP_AGING_INTERVAL = 1000;
+
+    /** Most sender addresses learned from received packets per second */
+    private static final int GLEAN_RATE = 100;
+
+    /** Start (in milliseconds since the epoch) of the second in which 
+     *  sender addresses are being counted */
+    private long gleanWindow;
+
+    /** Sender addresses learned in the current second */
+    private int gleanCount;
+
     /** RIP table for send RIP messages */
     private RIPv2EntryDataTable ripEntryTable;
 
-    /** Thread for sending unsolicited RIP responses */
-    private Thread ripThread;
+    /** Periodic task sending unsolicited RIP responses; null until RIP
+     *  starts */
+    private ScheduledFuture<?> ripTask;
+
+    /** Time (in seconds) between unsolicited RIP responses */
+    private static final long RIP_INTERVAL = 10;
+
+    /** File holding a binary snapshot of the routing table; null if none */
+    private String routeTableSnapshot;
 
     public static final String RIP_IP_ADDRESS = "224.0.0.9";
 
+    private static final int RIP_ADDRESS = IPv4.toIPv4Address(RIP_IP_ADDRESS);
+
+    /** Length of an Ethernet header without a VLAN tag */
+    private static final int ETH_HEADER_SIZE = 14;
+
     /**
      * Creates a router for a specific host.
      * @param host hostname for the router
@@ -40,10 +71,9 @@ public class Router extends Device implements Runnable
 	super(host,logfile);
 	this.routeTable = new RouteTable();
 	this.arpCache = new ArpCache();
-	this.arpObj = new ArpQO();
-    
-	// Intialize the thread
-	ripThread = new Thread(this);
+	this.arpObj = new ArpQO(this, TimingWheel.shared());
+	this.scheduleArpAging();
+
 	ripEntryTable = new RIPv2EntryDataTable(this.routeTable);
     }
 
@@ -51,44 +81,138 @@ public class Router extends Device implements Runnable
 	return this.arpCache;
     }
 
+    /**
+     * @return queue of packets waiting for the MAC address of their next hop
+     */
+    public ArpQO getArpQueue() {
+	return this.arpObj;
+    }
+
     /**
      * @return routing table for the router
      */
     public RouteTable getRouteTable()
     { return this.routeTable; }
 
+    /**
+     * Keep a binary snapshot of the routing table in a file. A static table
+     * is restored from the snapshot when it is newer than the text file,
+     * RIP warm-starts from the routes it learned last time, and the 
+     * snapshot is rewritten when the router shuts down.
+     * @param snapshotFile the name of the snapshot file
+     */
+    public void setRouteTableSnapshot(String snapshotFile)
+    { this.routeTableSnapshot = snapshotFile; }
+
     /**
      * Load a new routing table from a file.
      * @param routeTableFile the name of the file containing the routing table
      */
     public void loadRouteTable(String routeTableFile, boolean loadFromFile)
     {
-	if (loadFromFile && !routeTable.load(routeTableFile, this))
-	{
-	    System.err.println("Error setting up routing table from file "+ routeTableFile);
-	    System.exit(1);
-	} else if (!routeTable.loadFromString(routeTableFile, this) && !loadFromFile) {
-	    System.err.println("Error setting up routing table from file "+ routeTableFile);
-	    System.exit(1);
-	}
-
 	if (loadFromFile) {
-	    System.out.println("loaded static route table");
+	    if (this.isSnapshotCurrent(routeTableFile) 
+		    && routeTable.loadSnapshot(this.routeTableSnapshot, this)) {
+		Log.info("loaded route table snapshot " 
+			+ this.routeTableSnapshot);
+	    } else {
+		if (!routeTable.load(routeTableFile, this)) {
+		    System.err.println("Error setting up routing table from file "+ routeTableFile);
+		    System.exit(1);
+		}
+		if (this.routeTableSnapshot != null) {
+		    routeTable.saveSnapshot(this.routeTableSnapshot);
+		}
+	    }
+	    Log.info("loaded static route table");
 	} else {
-	    System.out.println("created route table");
+	    if (!routeTable.loadFromString(routeTableFile, this)) {
+		System.err.println("Error setting up routing table from file "+ routeTableFile);
+		System.exit(1);
+	    }
+	    Log.info("created route table");
 	    intializeAndSendRipRequests();
+	    this.mergeRouteTableSnapshot();
+	}
+
+	if (Log.isEnabled(Log.Level.INFO)) {
+	    Log.info("-------------------------------------------------\n"
+		    + this.routeTable.toString()
+		    + "-------------------------------------------------");
 	}
+    }
 
-	System.out.println("-------------------------------------------------");
-	System.out.print(this.routeTable.toString());
-	System.out.println("-------------------------------------------------");
+    /**
+     * @return true if the snapshot exists and is at least as new as the
+     *         text route table file
+     */
+    private boolean isSnapshotCurrent(String routeTableFile) {
+	if (null == this.routeTableSnapshot) {
+	    return false;
+	}
+	File snapshot = new File(this.routeTableSnapshot);
+	return snapshot.isFile() 
+	    && snapshot.lastModified() >= new File(routeTableFile).lastModified();
+    }
+
+    /**
+     * Add the routes learned through RIP before the last shutdown, so 
+     * packets can be forwarded before neighbours send their next update.
+     */
+    private void mergeRouteTableSnapshot() {
+	if (null == this.routeTableSnapshot 
+		|| !new File(this.routeTableSnapshot).isFile()) {
+	    return;
+	}
+	List<RouteEntry> entries = RouteTableFile.read(this.routeTableSnapshot, this);
+	if (null == entries) {
+	    return;
+	}
+
+	RouteTable.Batch batch = routeTable.beginBatch();
+	for (RouteEntry entry : entries) {
+	    // Directly connected routes are already in the table
+	    if (0 == entry.getMetric()) {
+		continue;
+	    }
+	    String key = getRipTableEntryKey(
+		    IPv4.fromIPv4Address(entry.getDestinationAddress()),
+		    IPv4.fromIPv4Address(entry.getMaskAddress()));
+	    if (ripEntryTable.insert(key, entry.getMetric())) {
+		// Remember the next hops, so they can leave the group later
+		for (int i = 0; i < entry.getNextHopCount(); i++) {
+		    ripEntryTable.update(key, entry.getNextHop(i), entry.getMetric());
+		}
+		batch.insert(entry);
+	    }
+	}
+	Log.info("warm-started " + batch.size() 
+		+ " RIP routes from " + this.routeTableSnapshot);
+	batch.commit();
+    }
+
+    /**
+     * Save the routing table snapshot, if one is kept, before shutting down.
+     */
+    @Override
+    public void destroy()
+    {
+	if (this.ripTask != null)
+	{ this.ripTask.cancel(false); }
+	this.ripEntryTable.stop();
+	this.arpAgingTask.cancel(false);
+	this.arpObj.clear();
+	if (this.routeTableSnapshot != null)
+	{ this.routeTable.saveSnapshot(this.routeTableSnapshot); }
+	super.destroy();
     }
 
     public void intializeAndSendRipRequests() {
-	System.out.println("---- Inside intializeAndSendRipRequests ----");
+	Log.debug("---- Inside intializeAndSendRipRequests ----");
 	sendUnsolicitedRipResponse(true);
-	ripThread.start();
-	System.out.println("---- Done with intializeAndSendRipRequests ----");
+	ripTask = DeviceTasks.scheduleWithFixedDelay(this, RIP_INTERVAL, 
+		RIP_INTERVAL, TimeUnit.SECONDS);
+	Log.debug("---- Done with intializeAndSendRipRequests ----");
     }
 
     public void sendUnsolicitedRipResponse(boolean init) {
@@ -101,20 +225,13 @@ public class Router extends Device implements Runnable
 	}
     }
 	
+    /**
+     * Send one round of unsolicited RIP responses; runs every RIP_INTERVAL
+     * seconds once RIP starts.
+     */
     public void run() {
-	System.out.println("Inside run. Ripthread starting");
-	while (true) {
-	    // Wait before send again
-	    try { 
-		// For send responses after 10 seconds
-		Thread.sleep(10000); 
-	    } catch (InterruptedException e) { 
-		break; 
-	    }
-	    
-	    // Send RIP messages here
-	    sendUnsolicitedRipResponse(false);
-	}
+	// Send RIP messages here
+	sendUnsolicitedRipResponse(false);
     }
 
     public Ethernet constructRipBroadcastMessage(Iface iface, boolean init) {
@@ -218,10 +335,12 @@ public class Router extends Device implements Runnable
 	    System.exit(1);
 	}
 
-	System.out.println("Loaded static ARP cache");
-	System.out.println("----------------------------------");
-	System.out.print(this.arpCache.toString());
-	System.out.println("----------------------------------");
+	if (Log.isEnabled(Log.Level.INFO)) {
+	    Log.info("Loaded static ARP cache\n"
+		    + "----------------------------------\n"
+		    + this.arpCache.toString()
+		    + "----------------------------------");
+	}
     }
 
     /**
@@ -233,24 +352,14 @@ public class Router extends Device implements Runnable
     {
 	//System.out.println("*** -> Received packet: " + etherPacket.toString().replace("\n", "\n\t"));
 
-	/********************************************************************/
-	/* Adding MacAddresses of the Source IP at the router                                             */
-	for(Iface iface : interfaces.values()) {
-	    if (arpCache.lookup(iface.getIpAddress()) == null) {
-		arpCache.insert(iface.getMacAddress(), iface.getIpAddress());
-	    }
-	}
-
-	
-
 	switch(etherPacket.getEtherType())
 	{
 	    case Ethernet.TYPE_IPv4:
 		if (isRIPpacket(etherPacket)) {
-		    System.out.println("Getting periodic RIP update");
+		    Log.debug("Getting periodic RIP update");
 		    processRIPpacket(etherPacket, inIface);
 		} else {
-		    System.out.println("Found ping/traceroute packet");
+		    Log.debug("Found ping/traceroute packet");
 		    this.handleIpPacket(etherPacket, inIface);
 		}
 		break;
@@ -268,35 +377,131 @@ public class Router extends Device implements Runnable
 	UDP udp = (UDP)ipPacket.getPayload();
 	RIPv2 ripTable = (RIPv2)udp.getPayload();
 	List<RIPv2Entry> entries = ripTable.getEntries();    
-	for (RIPv2Entry entry : entries) {
-	    int nextHopAddress = entry.getNextHopAddress();
-	    int address = entry.getAddress();
-	    int mask = entry.getSubnetMask();
-	    int metric = entry.getMetric();
-
-	    //System.out.println("nextHopAddress: " + IPv4.fromIPv4Address(nextHopAddress) + 
-	    //", address: " + IPv4.fromIPv4Address(address) + ", mask: " + IPv4.fromIPv4Address(mask)
-	    //+ ", metric: " + metric + ", inIface address: " + 
-	    //IPv4.fromIPv4Address(inIface.getIpAddress()) + ", inIface subnetmask: " + 
-	    //IPv4.fromIPv4Address(inIface.getSubnetMask()) + ", inIface name: " + inIface.getName());
-
-	    String ripEntryKey = getRipTableEntryKey(IPv4.fromIPv4Address(address), 
-				    IPv4.fromIPv4Address(mask)); 
+
+	// Apply all route changes from this response as one update, so packet
+	// forwarding never sees a partially applied response; hold the RIP 
+	// table until then, so its expiry sweep cannot interleave
+	synchronized (ripEntryTable) {
+	    RouteTable.Batch batch = routeTable.beginBatch();
+	    for (RIPv2Entry entry : entries) {
+		int nextHopAddress = entry.getNextHopAddress();
+		int address = entry.getAddress();
+		int mask = entry.getSubnetMask();
+		int metric = entry.getMetric();
+
+		//System.out.println("nextHopAddress: " + IPv4.fromIPv4Address(nextHopAddress) + 
+		//", address: " + IPv4.fromIPv4Address(address) + ", mask: " + IPv4.fromIPv4Address(mask)
+		//+ ", metric: " + metric + ", inIface address: " + 
+		//IPv4.fromIPv4Address(inIface.getIpAddress()) + ", inIface subnetmask: " + 
+		//IPv4.fromIPv4Address(inIface.getSubnetMask()) + ", inIface name: " + inIface.getName());
+
+		String ripEntryKey = getRipTableEntryKey(IPv4.fromIPv4Address(address), 
+					IPv4.fromIPv4Address(mask)); 
 	    
-	    boolean insertionResult = ripEntryTable.insert(ripEntryKey, metric + 1);
-	    System.out.println("insertionResult: " + insertionResult);
+		NextHop from = new NextHop(nextHopAddress, inIface);
+		int result = ripEntryTable.update(ripEntryKey, from, metric + 1);
+		if (Log.isDebugEnabled()) {
+		    Log.debug("ripUpdateResult: " + result);
+		}
 
-	    if (insertionResult) {
-		System.out.println("Updating the route table as well");
-		routeTable.remove(address, mask);
-		routeTable.insert(address, nextHopAddress, mask, inIface);
-	    }
-	} 
+		if (result == RIPv2EntryDataTable.NEW || result == RIPv2EntryDataTable.BETTER) {
+		    Log.debug("Updating the route table as well");
+		    batch.insert(address, nextHopAddress, mask, inIface, metric + 1);
+		} else if (result == RIPv2EntryDataTable.EQUAL) {
+		    // Another path of the same cost; spread flows across both
+		    batch.addNextHop(address, nextHopAddress, mask, inIface, metric + 1);
+		} else if (result == RIPv2EntryDataTable.LEFT_GROUP) {
+		    // This path got worse than the others; stop using it
+		    batch.removeNextHop(address, nextHopAddress, mask, inIface);
+		} else if (result == RIPv2EntryDataTable.REGROUPED) {
+		    // The only path got worse; use the best ones still advertised
+		    List<NextHop> nextHops = ripEntryTable.getNextHops(ripEntryKey);
+		    batch.insert(new RouteEntry(address, mask, 
+				nextHops.toArray(new NextHop[0]), 
+				ripEntryTable.ripDataTable.get(ripEntryKey).metric));
+		}
+	    } 
+	    batch.commit();
+	}
     
-	System.out.println("<--- Updated route table --->");
-	System.out.println(this.routeTable.toString());
-	System.out.println("<--- Current arp cache --->");
-	System.out.println(this.arpCache.toString());
+	if (Log.isDebugEnabled()) {
+	    Log.debug("<--- Updated route table --->\n" + this.routeTable.toString());
+	    Log.debug("<--- Current arp cache --->\n" + this.arpCache.toString());
+	}
+    }
+
+    /**
+     * Add permanent ARP entries for the router's own interfaces, once their
+     * addresses are known.
+     */
+    @Override
+    public void interfacesConfigured() {
+	for(Iface iface : interfaces.values()) {
+	    if (iface.getIpAddress() != 0 && iface.getMacAddress() != null) {
+		arpCache.insertPermanent(iface.getMacAddress(), iface.getIpAddress());
+	    }
+	}
+    }
+
+    /**
+     * Decide whether to learn the MAC address of a packet's sender. Only
+     * senders on the receiving interface's subnet are learned, since the
+     * MAC address of any other sender is that of the router it came 
+     * through. A sender already in the cache costs one lookup; new senders
+     * are learned at most GLEAN_RATE times a second, so a flood of packets
+     * from spoofed addresses cannot fill the cache.
+     * @param srcAddr IP address of the sender
+     * @param inIface interface the packet was received on
+     * @return true if the sender's mapping should be inserted
+     */
+    private boolean shouldGlean(int srcAddr, Iface inIface) {
+	int mask = inIface.getSubnetMask();
+	if ((srcAddr & mask) != (inIface.getIpAddress() & mask)
+		|| srcAddr == inIface.getIpAddress()
+		|| arpCache.contains(srcAddr)) {
+	    return false;
+	}
+
+	synchronized (this) {
+	    long now = System.currentTimeMillis();
+	    if (now - gleanWindow >= 1000) {
+		gleanWindow = now;
+		gleanCount = 0;
+	    }
+	    if (gleanCount >= GLEAN_RATE) {
+		return false;
+	    }
+	    gleanCount++;
+	    return true;
+	}
+    }
+
+    /**
+     * Age the ARP cache every ARP_AGING_INTERVAL milliseconds.
+     */
+    private void scheduleArpAging() {
+	this.arpAgingTask = DeviceTasks.scheduleWithFixedDelay(new Runnable() {
+		public void run() {
+		    ageArpCache();
+		}
+	    }, ARP_AGING_INTERVAL, ARP_AGING_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Expire old ARP cache entries, and ask the hosts of entries about to
+     * expire that are still in use to confirm their MAC address, with a
+     * request sent straight to that address on the interface the mapping
+     * was learned on.
+     */
+    private void ageArpCache() {
+	for (ArpEntry entry : arpCache.age()) {
+	    Iface iface = entry.getInterface();
+	    if (null == iface) {
+		continue;
+	    }
+	    this.sendPacket(createArpRequest(entry.getIp(), iface, 
+			entry.getMac().toBytes()), iface);
+	}
     }
 
     public boolean isRIPpacket(Ethernet etherPacket) {
@@ -356,9 +561,7 @@ public class Router extends Device implements Runnable
 		ether.setPayload(arp);
 		
 		// Set that ARP Request processed
-		if (arpObj.packetMap.containsKey(targetIP)) {
-		    arpObj.packetMap.get(targetIP).request = true;
-		}
+		arpObj.setRequested(targetIP);
 		
 		this.sendPacket(ether, inIface);
 		//System.out.println("Done sending ARP reply");
@@ -370,45 +573,42 @@ public class Router extends Device implements Runnable
 	    
 
 	    if (arpObj.packetMap.containsKey(targetIP)) {
-	        ArpQOData dataEntry = arpObj.packetMap.get(targetIP);
-
-	        // Prevent more Arp requests from being sent
-	        dataEntry.request = true;
-	        arpObj.print();
-
-	        // Add to Arp cache 
-		byte [] destMac = arpPacket.getSenderHardwareAddress();
-		arpCache.insert(new MACAddress(destMac), targetIP);
-
-	        // Send all the packets
-		while (!dataEntry.packets.isEmpty()) {
-		    Ethernet packet = dataEntry.packets.remove();
-		    packet.setDestinationMACAddress(destMac);
-		    this.sendPacket(packet, inIface);
+	        if (Log.isDebugEnabled()) {
+		    arpObj.print();
 		}
 
-	        // Remove the key from the hashmap
-		arpObj.packetMap.remove(targetIP);
+	        // Add to Arp cache before taking the waiting packets, so a
+		// packet queued meanwhile is either taken here or finds the entry
+		byte [] destMac = arpPacket.getSenderHardwareAddress();
+		arpCache.insert(new MACAddress(destMac), targetIP, inIface);
+		this.sendWaitingPackets(targetIP, destMac, inIface);
+	    } else {
+		// Answer to a refresh request
+		arpCache.refresh(new MACAddress(arpPacket.getSenderHardwareAddress()), targetIP, inIface);
 	    }
 	}
     }
 
-    private void generateARPRequests(Ethernet etherPacket, Iface bestMatchIface) {
-	System.out.println("----- Inside generateARPRequests -----");
-
-	// send arp reply if interface ip = packet ip
-	IPv4 ipPacket = (IPv4)(etherPacket.getPayload());
-	int dstAddr = ipPacket.getDestinationAddress();
-
+    /**
+     * Create an ARP request for an IP address.
+     * @param targetIp IP address whose MAC address is wanted
+     * @param iface interface the request is sent on
+     * @param dstMac MAC address to send the request to; null to broadcast
+     */
+    private Ethernet createArpRequest(int targetIp, Iface iface, byte[] dstMac) {
 	// create ethernet packet
 	Ethernet ether = new Ethernet();
 	ether.setEtherType(Ethernet.TYPE_ARP);
 
 	// source mac of the packet - interface on which we received initially
-	ether.setSourceMACAddress(bestMatchIface.getMacAddress().toBytes());
+	ether.setSourceMACAddress(iface.getMacAddress().toBytes());
 
 	// set destination mac
-	ether.setDestinationMACAddress("FF:FF:FF:FF:FF:FF");
+	if (null == dstMac) {
+	    ether.setDestinationMACAddress("FF:FF:FF:FF:FF:FF");
+	} else {
+	    ether.setDestinationMACAddress(dstMac);
+	}
 
 	// Create ARP packet
 	ARP arp = new ARP();
@@ -420,31 +620,170 @@ public class Router extends Device implements Runnable
 	arp.setHardwareAddressLength((byte)Ethernet.DATALAYER_ADDRESS_LENGTH);
 	arp.setProtocolAddressLength((byte)4);
 	arp.setOpCode(ARP.OP_REQUEST);
-	arp.setSenderHardwareAddress(bestMatchIface.getMacAddress().toBytes());
-	arp.setSenderProtocolAddress(bestMatchIface.getIpAddress());
+	arp.setSenderHardwareAddress(iface.getMacAddress().toBytes());
+	arp.setSenderProtocolAddress(iface.getIpAddress());
 	arp.setTargetHardwareAddress(hardAddr);
-	arp.setTargetProtocolAddress(dstAddr);
+	arp.setTargetProtocolAddress(targetIp);
 
-	System.out.println("Bestmatch interface: " + bestMatchIface);
+	ether.setPayload(arp);
+	return ether;
+    }
 
+    private void generateARPRequests(Ethernet etherPacket, Iface bestMatchIface, int dstAddr) {
+	Log.debug("----- Inside generateARPRequests -----");
 
-	ether.setPayload(arp);
+	if (Log.isDebugEnabled()) {
+	    Log.debug("Bestmatch interface: " + bestMatchIface);
+	}
+
+	Ethernet ether = createArpRequest(dstAddr, bestMatchIface, null);
 
 	// Enqueue the ethernet packet whose next mac address is not available
 	// send the arp request and wait for the mac address
-	arpObj.insert(dstAddr, etherPacket);
+	boolean first = arpObj.insert(dstAddr, etherPacket, ether, bestMatchIface);
 
-	//Send first arp request
-	System.out.println("Attempt 0 at finding mac address");
-	this.sendPacket(ether, bestMatchIface);
+	// Another worker may have handled the reply after we looked in the
+	// cache but before the packet was queued
+	long mac = arpCache.lookupMac(dstAddr);
+	if (mac != ArpCache.NO_MAC) {
+	    this.sendWaitingPackets(dstAddr, MACAddress.valueOf(mac).toBytes(), bestMatchIface);
+	    return;
+	}
 
-	//Wait 1 second respectively for the next 2 subsequent packets.
-	arpObj.timeout(dstAddr, this, ether, bestMatchIface);
+	//Send first arp request; the queue retransmits it every second
+	if (first) {
+	    Log.debug("Attempt 0 at finding mac address");
+	    this.sendPacket(ether, bestMatchIface);
+	}
 	
 	//this.sendPacket(ether, inIface);
 	//System.out.println("Done generating ARP REQUEST for ip: " + IPv4.fromIPv4Address(dstAddr));
     }
 
+    /**
+     * Send the packets that were waiting for the MAC address of an IP
+     * address, now that it is known.
+     */
+    private void sendWaitingPackets(int ip, byte[] mac, Iface outIface) {
+	Queue<byte[]> frames = arpObj.resolve(ip);
+	if (null == frames) {
+	    return;
+	}
+	for (byte[] frame : frames) {
+	    System.arraycopy(mac, 0, frame, 0, Ethernet.DATALAYER_ADDRESS_LENGTH);
+	    this.sendFrame(ByteBuffer.wrap(frame), outIface);
+	}
+    }
+
+    /**
+     * Forward transit IPv4 frames by editing their bytes in place: the MAC
+     * addresses, TTL and checksum are rewritten and the same buffer is sent
+     * out. Frames that need more than that (ARP, RIP, packets for the
+     * router, expiring TTLs, missing routes or ARP entries, bad checksums
+     * are dropped here) are left to the packet object path.
+     */
+    @Override
+    public boolean handleFrame(ByteBuffer frame, Iface inIface) {
+	int eth = frame.position();
+	if (null == inIface || frame.remaining() < ETH_HEADER_SIZE + 20
+		|| frame.getShort(eth + 12) != Ethernet.TYPE_IPv4) {
+	    return false;
+	}
+
+	// Only plain IPv4 headers; anything malformed takes the slow path
+	int ip = eth + ETH_HEADER_SIZE;
+	int versionIhl = frame.get(ip) & 0xff;
+	int headerLength = (versionIhl & 0xf) * 4;
+	if ((versionIhl >> 4) != 4 || headerLength < 20
+		|| ip + headerLength > frame.limit()) {
+	    return false;
+	}
+
+	// RIP updates need the full stack, and are not checksum verified
+	int srcAddr = frame.getInt(ip + 12);
+	int dstAddr = frame.getInt(ip + 16);
+	if (dstAddr == RIP_ADDRESS) {
+	    return false;
+	}
+
+	// Verify checksum over the header; drop the frame if it is wrong
+	int sum = 0;
+	for (int i = 0; i < headerLength; i += 2) {
+	    sum += frame.getShort(ip + i) & 0xffff;
+	}
+	sum = (sum >> 16) + (sum & 0xffff);
+	sum += sum >> 16;
+	if ((sum & 0xffff) != 0xffff) {
+	    return true;
+	}
+
+	// So do packets for the router
+	for (Iface iface : this.interfaces.values()) {
+	    if (dstAddr == iface.getIpAddress()) {
+		return false;
+	    }
+	}
+
+	// An expiring TTL needs an ICMP time exceeded message
+	int ttl = frame.get(ip + 8) & 0xff;
+	if (ttl <= 1) {
+	    return false;
+	}
+
+	RouteEntry bestMatch = this.routeTable.lookup(dstAddr);
+	if (null == bestMatch) {
+	    return false;
+	}
+	byte protocol = frame.get(ip + 9);
+	int ports = 0;
+	// Fragments after the first carry no ports, so leave the ports out for
+	// every fragment to keep a datagram's fragments on one path
+	boolean fragment = (frame.getShort(ip + 6) & 0x3fff) != 0;
+	if ((protocol == IPv4.PROTOCOL_TCP || protocol == IPv4.PROTOCOL_UDP)
+		&& !fragment && ip + headerLength + 4 <= frame.limit()) {
+	    ports = frame.getInt(ip + headerLength);
+	}
+	NextHop route = bestMatch.selectNextHop(
+		flowHash(srcAddr, dstAddr, protocol, ports));
+	Iface outIface = route.getInterface();
+	if (outIface == inIface) {
+	    return true;
+	}
+	int nextHop = route.getGatewayAddress();
+	if (0 == nextHop) {
+	    nextHop = dstAddr;
+	}
+	long mac = this.arpCache.lookupMac(nextHop);
+	if (ArpCache.NO_MAC == mac) {
+	    return false;
+	}
+
+	// Learn the sender's MAC, as the packet object path does
+	if (this.shouldGlean(srcAddr, inIface)) {
+	    byte[] srcMac = new byte[Ethernet.DATALAYER_ADDRESS_LENGTH];
+	    for (int i = 0; i < srcMac.length; i++) {
+		srcMac[i] = frame.get(eth + 6 + i);
+	    }
+	    this.arpCache.insert(new MACAddress(srcMac), srcAddr, inIface);
+	}
+
+	// Rewrite the frame in place
+	putMac(frame, eth, mac);
+	putMac(frame, eth + 6, outIface.getMacAddress().toLong());
+	short oldWord = frame.getShort(ip + 8);
+	frame.put(ip + 8, (byte)(ttl - 1));
+	frame.putShort(ip + 10, IPv4.updateChecksum(frame.getShort(ip + 10),
+		    oldWord, frame.getShort(ip + 8)));
+
+	this.sendFrame(frame, outIface);
+	return true;
+    }
+
+    private static void putMac(ByteBuffer frame, int offset, long mac) {
+	frame.putShort(offset, (short)(mac >>> 32));
+	frame.putInt(offset + 2, (int)mac);
+    }
+
     private void handleIpPacket(Ethernet etherPacket, Iface inIface)
     {
 	// Make sure it's an IP packet
@@ -455,30 +794,22 @@ public class Router extends Device implements Runnable
 	IPv4 ipPacket = (IPv4)etherPacket.getPayload();
 	//System.out.println("Handle IP packet");
 
-	if (arpCache.lookup(ipPacket.getSourceAddress()) == null) {
-	    arpCache.insert(etherPacket.getSourceMAC(), ipPacket.getSourceAddress());
+	if (shouldGlean(ipPacket.getSourceAddress(), inIface)) {
+	    arpCache.insert(etherPacket.getSourceMAC(), ipPacket.getSourceAddress(), inIface);
 	}
 	
-	// Verify checksum
-	short origCksum = ipPacket.getChecksum();
-	ipPacket.resetChecksum();
-	byte[] serialized = ipPacket.serialize();
-	ipPacket.deserialize(serialized, 0, serialized.length);
-	short calcCksum = ipPacket.getChecksum();
-	if (origCksum != calcCksum)
+	// Verify checksum over the header only
+	if (!ipPacket.isChecksumValid())
 	{ return; }
 
-	// Check TTL
-	ipPacket.setTtl((byte)(ipPacket.getTtl()-1));
+	// Check TTL; the checksum is adjusted for the new TTL in place
+	ipPacket.decrementTtl();
 	if (0 == ipPacket.getTtl()) { 
 	    // create the ICMP message here and return
 	    createICMPMessage(etherPacket, inIface, (byte)11, (byte)0); 
 	    return; 
 	}
 
-	// Reset checksum now that TTL is decremented
-	ipPacket.resetChecksum();
-
 	// Check if packet is destined for one of router's interfaces
 	boolean flag = false;
 	for (Iface iface : this.interfaces.values()) {
@@ -572,8 +903,10 @@ public class Router extends Device implements Runnable
 	int dstAddr = ipPacket.getDestinationAddress();
 
 	// Find matching route table entry 
-	System.out.println("dstAddr: " + IPv4.fromIPv4Address(dstAddr));	
-	System.out.println(arpCache.toString());
+	if (Log.isTraceEnabled()) {
+	    Log.trace("dstAddr: " + IPv4.fromIPv4Address(dstAddr) + "\n" 
+		    + arpCache.toString());
+	}
 	RouteEntry bestMatch = this.routeTable.lookup(dstAddr);
 
 	//System.out.println("bestmatch: " + bestMatch);
@@ -584,8 +917,11 @@ public class Router extends Device implements Runnable
 	    return; 
 	}
 
+	// Pick one of the equal-cost next hops for the packet's flow
+	NextHop route = bestMatch.selectNextHop(flowHash(ipPacket));
+
 	// Make sure we don't sent a packet back out the interface it came in
-	Iface outIface = bestMatch.getInterface();
+	Iface outIface = route.getInterface();
 	if (outIface == inIface)
 	{ return; }
 
@@ -593,24 +929,70 @@ public class Router extends Device implements Runnable
 	etherPacket.setSourceMACAddress(outIface.getMacAddress().toBytes());
 
 	// If no gateway, then nextHop is IP destination
-	int nextHop = bestMatch.getGatewayAddress();
+	int nextHop = route.getGatewayAddress();
 	if (0 == nextHop)
 	{ nextHop = dstAddr; }
 
 	// Set destination MAC address in Ethernet header
-	ArpEntry arpEntry = this.arpCache.lookup(nextHop);
-	if (null == arpEntry){ 
-	    generateARPRequests(etherPacket, outIface);
+	long mac = this.arpCache.lookupMac(nextHop);
+	if (ArpCache.NO_MAC == mac){ 
+	    // The next hop did not answer recently; do not ask it again yet
+	    if (arpCache.isUnreachable(nextHop)) {
+		createICMPMessage(etherPacket, inIface, (byte)3, (byte)1); 
+		return;
+	    }
+	    generateARPRequests(etherPacket, outIface, nextHop);
 	    
 	    //createICMPMessage(etherPacket, inIface, (byte)3, (byte)1); 
 	    //handleARPPacket(etherPacket, inIface, ARP.OP_REPLY);
 	    return; 
 	}
-	etherPacket.setDestinationMACAddress(arpEntry.getMac().toBytes());
+	etherPacket.setDestinationMACAddress(mac);
 	this.sendPacket(etherPacket, outIface);
 	//System.out.println("Done forwarding the packet");
     }
 
+    /**
+     * Hash the 5-tuple of a packet: addresses, protocol and, for TCP and 
+     * UDP, ports. Packets of the same flow always hash alike. Fragments are
+     * hashed without ports, as the fast path does.
+     */
+    private static int flowHash(IPv4 ipPacket) {
+	int ports = 0;
+	boolean fragment = (ipPacket.getFlags() & 0x1) != 0
+		|| ipPacket.getFragmentOffset() != 0;
+	IPacket payload = fragment ? null : ipPacket.getPayload();
+	if (payload instanceof TCP) {
+	    TCP tcp = (TCP)payload;
+	    ports = (tcp.getSourcePort() << 16) | (tcp.getDestinationPort() & 0xffff);
+	} else if (payload instanceof UDP) {
+	    UDP udp = (UDP)payload;
+	    ports = (udp.getSourcePort() << 16) | (udp.getDestinationPort() & 0xffff);
+	}
+	return flowHash(ipPacket.getSourceAddress(), ipPacket.getDestinationAddress(),
+		ipPacket.getProtocol(), ports);
+    }
+
+    /**
+     * Hash a 5-tuple. The fast path and the packet object path must agree,
+     * so a flow keeps its next hop whichever path its packets take.
+     * @param ports source port in the high 16 bits and destination port in
+     *        the low 16 bits; 0 for protocols without ports
+     */
+    private static int flowHash(int srcAddr, int dstAddr, byte protocol, int ports) {
+	int hash = srcAddr * 31 + dstAddr;
+	hash = hash * 31 + protocol;
+	hash = hash * 31 + ports;
+
+	// Mix the bits so the low bits depend on every field
+	hash ^= hash >>> 16;
+	hash *= 0x85ebca6b;
+	hash ^= hash >>> 13;
+	hash *= 0xc2b2ae35;
+	hash ^= hash >>> 16;
+	return hash;
+    }
+
     public void createICMPMessage(Ethernet origPacket, Iface inIface, byte type, byte code) {
 	// create new ethernet packet
 	//System.out.println("Inside createICMPMessage");
@@ -721,13 +1103,13 @@ public class Router extends Device implements Runnable
 	}
 
 	// Set destination MAC address in Ethernet header
-	ArpEntry arpEntry = this.arpCache.lookup(nextHop);
-	if (null == arpEntry) { 
+	long mac = this.arpCache.lookupMac(nextHop);
+	if (ArpCache.NO_MAC == mac) { 
 	    //System.out.println("Cannot find arp entry");
 	    return null; 
 	}
 
-	ether.setDestinationMACAddress(arpEntry.getMac().toBytes());
+	ether.setDestinationMACAddress(mac);
 	return ether;
     }
 
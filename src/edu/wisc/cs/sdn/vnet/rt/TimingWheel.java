@@ -0,0 +1,180 @@
+package edu.wisc.cs.sdn.vnet.rt;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import edu.wisc.cs.sdn.vnet.DeviceTasks;
+import edu.wisc.cs.sdn.vnet.Log;
+
+/**
+ * Hashed timing wheel for the routers' many short timers, such as ARP
+ * retransmits. Time is divided into ticks and the wheel into a ring of
+ * slots, each holding a doubly linked list of the timers due in that slot;
+ * a timer further away than one turn of the wheel counts the turns left.
+ * Scheduling and cancelling a timer are O(1), and one periodic task on the
+ * shared device scheduler advances the wheel, so neither a burst of timers
+ * nor many routers in one JVM start more threads.
+ *
+ * Timers fire on a scheduler thread, up to one tick late, and should not
+ * block.
+ */
+class TimingWheel
+{
+    /** Resolution (in milliseconds) of the shared wheel's timers */
+    private static final long TICK = 100;
+
+    /** Slots in the shared wheel */
+    private static final int SLOTS = 256;
+
+    /** Wheel shared by every router in the JVM; created when first used */
+    private static TimingWheel shared;
+
+    /** A scheduled task; used to cancel it */
+    class Timeout
+    {
+	/** Work to run when the timer fires */
+	private final Runnable task;
+
+	/** Full turns of the wheel left before the timer is due */
+	private long rounds;
+
+	/** Slot the timer is in; -1 once it fired or was cancelled */
+	private int slot;
+
+	/** Neighbours in the slot's list */
+	private Timeout prev, next;
+
+	private Timeout(Runnable task)
+	{ this.task = task; }
+
+	/**
+	 * Stop the timer from firing.
+	 * @return false if the timer already fired or was cancelled
+	 */
+	boolean cancel()
+	{
+	    synchronized (TimingWheel.this)
+	    {
+		if (this.slot < 0)
+		{ return false; }
+		unlink(this);
+		return true;
+	    }
+	}
+    }
+
+    /** Length of a tick in nanoseconds */
+    private final long tickNanos;
+
+    /** Heads of the timer lists; a power of two of them */
+    private final Timeout[] slots;
+
+    /** Mask turning a tick into a slot index */
+    private final int mask;
+
+    /** Ticks the wheel has advanced; only written under the lock */
+    private long tick;
+
+    /**
+     * Create a wheel and start advancing it on the device scheduler.
+     * @param tickMillis resolution of the timers in milliseconds
+     * @param slots number of slots; rounded up to a power of two
+     */
+    TimingWheel(long tickMillis, int slots)
+    {
+	int size = 1;
+	while (size < slots)
+	{ size <<= 1; }
+	this.slots = new Timeout[size];
+	this.mask = size - 1;
+	this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+	DeviceTasks.scheduleAtFixedRate(new Runnable() {
+	    public void run()
+	    { advance(); }
+	}, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the wheel shared by every router in the JVM
+     */
+    static synchronized TimingWheel shared()
+    {
+	if (null == shared)
+	{ shared = new TimingWheel(TICK, SLOTS); }
+	return shared;
+    }
+
+    /**
+     * Run a task once after a delay.
+     * @param task work to run on the ticker thread
+     * @param delay how long to wait; rounded up to whole ticks
+     * @param unit unit of the delay
+     * @return the timer, to cancel it with
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit)
+    {
+	long ticks = Math.max(1, 
+		(unit.toNanos(delay) + this.tickNanos - 1) / this.tickNanos);
+	Timeout timeout = new Timeout(task);
+	synchronized (this)
+	{
+	    long due = this.tick + ticks;
+	    timeout.rounds = (ticks - 1) / this.slots.length;
+	    timeout.slot = (int)due & this.mask;
+	    timeout.next = this.slots[timeout.slot];
+	    if (timeout.next != null)
+	    { timeout.next.prev = timeout; }
+	    this.slots[timeout.slot] = timeout;
+	}
+	return timeout;
+    }
+
+    /** Remove a timer from its slot's list; called with the lock held */
+    private void unlink(Timeout timeout)
+    {
+	if (timeout.prev != null)
+	{ timeout.prev.next = timeout.next; }
+	else
+	{ this.slots[timeout.slot] = timeout.next; }
+	if (timeout.next != null)
+	{ timeout.next.prev = timeout.prev; }
+	timeout.prev = timeout.next = null;
+	timeout.slot = -1;
+    }
+
+    /** Advance the wheel one tick and fire the timers due */
+    private void advance()
+    {
+	// Take the timers due this tick, then run them without the lock
+	List<Runnable> due = new ArrayList<Runnable>();
+	synchronized (this)
+	{
+	    this.tick++;
+	    Timeout timeout = this.slots[(int)this.tick & this.mask];
+	    while (timeout != null)
+	    {
+		Timeout next = timeout.next;
+		if (timeout.rounds > 0)
+		{ timeout.rounds--; }
+		else
+		{
+		    unlink(timeout);
+		    due.add(timeout.task);
+		}
+		timeout = next;
+	    }
+	}
+
+	for (Runnable task : due)
+	{
+	    try
+	    { task.run(); }
+	    catch (RuntimeException e)
+	    {
+		Log.error("Error in timer: " + e);
+		e.printStackTrace();
+	    }
+	}
+    }
+}
@@ -2,7 +2,10 @@ package edu.wisc.cs.sdn.vnet.sw;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
+import edu.wisc.cs.sdn.vnet.DeviceTasks;
 import edu.wisc.cs.sdn.vnet.Iface;
 
 import net.floodlightcontroller.packet.MACAddress;
@@ -19,8 +22,8 @@ public class MACTable implements Runnable
 	/** Entries in the MAC table */
 	private Map<MACAddress,MACTableEntry> entries;
 	
-	/** Thread for timing out requests and entries in the cache */
-	private Thread timeoutThread;
+	/** Periodic task timing out entries in the table */
+	private ScheduledFuture<?> timeoutTask;
 
 	/**
 	 * Initializes an empty MAC learning table for a switch.
@@ -29,8 +32,8 @@ public class MACTable implements Runnable
 	public MACTable()
 	{
 		this.entries = new ConcurrentHashMap<MACAddress, MACTableEntry>();
-		timeoutThread = new Thread(this);
-		timeoutThread.start();
+		timeoutTask = DeviceTasks.scheduleWithFixedDelay(this, 1, 1, 
+				TimeUnit.SECONDS);
 	}
 	
 	public void insert(MACAddress macAddress, Iface iface)
@@ -52,26 +55,23 @@ public class MACTable implements Runnable
 		return null;
 	}
 	
+	/**
+	 * Stop timing out entries.
+	 */
+	public void stop()
+	{ this.timeoutTask.cancel(false); }
+	
 	/**
 	 * Every second: timeout MAC table entries.
 	 */
 	public void run()
 	{
-		while (true)
+		// Timeout entries
+		for (MACTableEntry entry : this.entries.values())
 		{
-			// Run every second
-			try 
-			{ Thread.sleep(1000); }
-			catch (InterruptedException e) 
-			{ break; }
-			
-			// Timeout entries
-			for (MACTableEntry entry : this.entries.values())
-			{
-				if ((System.currentTimeMillis() - entry.getTimeUpdated()) 
-						> TIMEOUT)
-				{ this.entries.remove(entry.getMACAddress()); }
-			}
+			if ((System.currentTimeMillis() - entry.getTimeUpdated()) 
+					> TIMEOUT)
+			{ this.entries.remove(entry.getMACAddress()); }
 		}
 	}
 }
@@ -4,6 +4,7 @@ import net.floodlightcontroller.packet.Ethernet;
 import edu.wisc.cs.sdn.vnet.Device;
 import edu.wisc.cs.sdn.vnet.DumpFile;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
 
 /**
  * @author Aaron Gember-Jacobson
@@ -22,6 +23,16 @@ public class Switch extends Device
 		this.macTable = new MACTable();
 	}
 
+	/**
+	 * Stop timing out MAC table entries before shutting down.
+	 */
+	@Override
+	public void destroy()
+	{
+		this.macTable.stop();
+		super.destroy();
+	}
+
 	/**
 	 * Handle an Ethernet packet received on a specific interface.
 	 * @param etherPacket the Ethernet packet that was received
@@ -29,8 +40,11 @@ public class Switch extends Device
 	 */
 	public void handlePacket(Ethernet etherPacket, Iface inIface)
 	{
-		System.out.println("*** -> Received packet: " +
-                etherPacket.toString().replace("\n", "\n\t"));
+		if (Log.isDebugEnabled())
+		{
+			Log.debug("*** -> Received packet: " +
+					etherPacket.toString().replace("\n", "\n\t"));
+		}
 		
 		/********************************************************************/
 		/* TODO: Handle packets                                             */
@@ -47,7 +61,8 @@ public class Switch extends Device
 				if (iface != inIface)
 				{
 					this.sendPacket(etherPacket, iface);
-					System.out.println("Send packet out interface "+iface);
+					if (Log.isDebugEnabled())
+					{ Log.debug("Send packet out interface "+iface); }
 				}
 			}
 		}
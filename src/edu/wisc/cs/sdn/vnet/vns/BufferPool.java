@@ -0,0 +1,91 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of buffers for commands exchanged with the VNS server, so
+ * reading and sending packets does not allocate a buffer per packet.
+ *
+ * A buffer taken with {@link #acquire()} belongs to the caller until it is
+ * passed to {@link #release(ByteBuffer)}; nothing may refer to its contents
+ * after that, so whatever must outlive the buffer, such as a packet decoded
+ * from it, is serialized into its own array before the release. When the
+ * pool is empty a new buffer is allocated, and buffers released while the
+ * pool is full are left to the garbage collector, so the pool never blocks
+ * and never holds more than its capacity.
+ */
+public class BufferPool
+{
+	/** Size of the buffers in the pool */
+	private final int bufferSize;
+
+	/** Buffers ready to be acquired */
+	private final ArrayBlockingQueue<ByteBuffer> free;
+
+	/** Number of buffers allocated because the pool was empty */
+	private final AtomicLong allocated = new AtomicLong();
+
+	/**
+	 * @param bufferSize size of each buffer in bytes
+	 * @param capacity most buffers kept in the pool
+	 */
+	public BufferPool(int bufferSize, int capacity)
+	{
+		this.bufferSize = bufferSize;
+		this.free = new ArrayBlockingQueue<ByteBuffer>(capacity);
+	}
+
+	/**
+	 * @return size of each buffer in bytes
+	 */
+	public int getBufferSize()
+	{ return this.bufferSize; }
+
+	/**
+	 * @return number of buffers allocated because the pool was empty
+	 */
+	public long getAllocated()
+	{ return this.allocated.get(); }
+
+	/**
+	 * Take a buffer from the pool, allocating one if the pool is empty.
+	 * @return a cleared buffer of getBufferSize() bytes
+	 */
+	public ByteBuffer acquire()
+	{
+		ByteBuffer buf = this.free.poll();
+		if (null == buf)
+		{
+			this.allocated.incrementAndGet();
+			return ByteBuffer.allocate(this.bufferSize);
+		}
+		return buf;
+	}
+
+	/**
+	 * Take a buffer able to hold a number of bytes. Buffers larger than the
+	 * pool's are allocated and are not kept when released.
+	 * @param size bytes the buffer must hold
+	 * @return a cleared buffer of at least size bytes
+	 */
+	public ByteBuffer acquire(int size)
+	{
+		if (size > this.bufferSize)
+		{ return ByteBuffer.allocate(size); }
+		return this.acquire();
+	}
+
+	/**
+	 * Return a buffer to the pool. The caller must not use it afterwards.
+	 * @param buf buffer taken from this pool; null is ignored
+	 */
+	public void release(ByteBuffer buf)
+	{
+		if (null == buf || buf.capacity() != this.bufferSize)
+		{ return; }
+		buf.clear();
+		this.free.offer(buf);
+	}
+}
@@ -36,12 +36,14 @@ public abstract class Command
 	protected byte[] serialize()
 	{
 		byte[] data = new byte[8];
-        ByteBuffer bb = ByteBuffer.wrap(data);
-        
-        bb.putInt(this.mLen);
-        bb.putInt(this.mType);
-        
-        return data;
+		this.serialize(ByteBuffer.wrap(data));
+		return data;
+	}
+	
+	protected void serialize(ByteBuffer bb)
+	{
+		bb.putInt(this.mLen);
+		bb.putInt(this.mType);
 	}
 	
 	protected int getSize()
@@ -6,6 +6,9 @@ import net.floodlightcontroller.packet.Ethernet;
 
 public class CommandPacket extends Command
 {
+	/** Bytes of a packet command before the Ethernet frame */
+	public static final int HEADER_SIZE = 4 + 4 + 16;
+	
 	protected String mInterfaceName;
 	protected Ethernet etherPacket;
 	
@@ -22,7 +25,7 @@ public class CommandPacket extends Command
 		
         this.etherPacket = new Ethernet();
 		this.etherPacket.deserialize(buf.array(), buf.position(),
-				buf.capacity() - buf.position());
+				buf.limit() - buf.position());
 		
 		return this;
 	}
@@ -30,24 +33,44 @@ public class CommandPacket extends Command
 	protected int getSize()
 	{ return super.getSize() + 16; }
 	
+	/**
+	 * Write the command header for a frame at a buffer's position.
+	 * @param bb buffer to write to
+	 * @param ifaceName name of the interface to send the frame out of
+	 * @param frameLength length of the frame
+	 */
+	protected static void writeHeader(ByteBuffer bb, String ifaceName, 
+			int frameLength)
+	{
+		bb.putInt(HEADER_SIZE + frameLength);
+		bb.putInt(Command.VNS_PACKET);
+		for (int i = 0; i < 16; i++)
+		{ bb.put((i < ifaceName.length()) ? (byte)ifaceName.charAt(i) : 0); }
+	}
+	
 	protected byte[] serialize()
 	{
-		byte[] packet = this.etherPacket.serialize();
-		int size = this.getSize() + packet.length;
-		this.mLen = size;
-		
-		byte[] data = new byte[size];
-        ByteBuffer bb = ByteBuffer.wrap(data);
-        
-        byte[] parentData = super.serialize();
-        
-        bb.put(parentData);
-        byte[] tmp = new byte[16];
-        System.arraycopy(this.mInterfaceName.getBytes(), 0, tmp, 0, 
-                this.mInterfaceName.length());
-        bb.put(tmp);
-        bb.put(packet);
-        
-        return data;
+		byte[] data = new byte[this.getSerializedLength()];
+		this.serialize(ByteBuffer.wrap(data));
+		return data;
+	}
+	
+	/**
+	 * @return the number of bytes serialize writes, header and frame
+	 */
+	protected int getSerializedLength()
+	{ return HEADER_SIZE + this.etherPacket.getSerializedLength(); }
+	
+	/**
+	 * Write the command, header and frame, at a buffer's position. The frame
+	 * is serialized straight into the buffer.
+	 * @param bb buffer with at least getSerializedLength() bytes remaining
+	 */
+	protected void serialize(ByteBuffer bb)
+	{
+		int frameLength = this.etherPacket.getSerializedLength();
+		this.mLen = HEADER_SIZE + frameLength;
+		writeHeader(bb, this.mInterfaceName, frameLength);
+		this.etherPacket.serialize(bb);
 	}
 }
@@ -0,0 +1,162 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import edu.wisc.cs.sdn.vnet.Log;
+
+/**
+ * Writes commands to the VNS server from a thread of its own. Commands are
+ * queued by the threads sending packets and written in batches: the writer
+ * takes every queued command, waits a few microseconds for more, and sends
+ * them all in one gathering write. A batch is written early once it reaches
+ * a size limit. When the queue is full, senders wait for room, so a slow
+ * server slows the device down instead of using up memory.
+ */
+class CommandWriter implements Runnable
+{
+	/** How long a sender waits for room before checking whether the
+	 *  writer has stopped */
+	private static final long SEND_WAIT_MILLIS = 10;
+
+	/** Most commands written in one batch */
+	private static final int MAX_BATCH = 64;
+
+	/** Bytes after which a batch is written without waiting for more */
+	private static final int MAX_BATCH_BYTES = 1 << 16;
+
+	/** Channel commands are written to */
+	private final GatheringByteChannel channel;
+
+	/** Pool the queued buffers are returned to once written */
+	private final BufferPool bufferPool;
+
+	/** Commands waiting to be written */
+	private final ArrayBlockingQueue<ByteBuffer> queue;
+
+	/** How long to wait for more commands before writing a batch */
+	private final long flushDelayNanos;
+
+	/** Set once a write has failed or the writer has stopped; nothing more
+	 *  is written */
+	private volatile boolean failed;
+
+	/**
+	 * @param channel channel to write commands to
+	 * @param bufferPool pool to return buffers to once written
+	 * @param depth most commands queued before senders wait
+	 * @param flushDelayNanos how long to wait for more commands before
+	 *        writing a batch; 0 writes as soon as the queue is empty
+	 */
+	CommandWriter(GatheringByteChannel channel, BufferPool bufferPool,
+			int depth, long flushDelayNanos)
+	{
+		this.channel = channel;
+		this.bufferPool = bufferPool;
+		this.queue = new ArrayBlockingQueue<ByteBuffer>(depth);
+		this.flushDelayNanos = flushDelayNanos;
+	}
+
+	/**
+	 * Queue a command, waiting for room if the queue is full. The buffer
+	 * belongs to the writer from now on and is released once written.
+	 * @param command buffer from the pool holding the command between its
+	 *        position and limit
+	 * @return false if the writer has stopped and the command was dropped
+	 */
+	boolean send(ByteBuffer command)
+	{
+		try
+		{
+			// Wait for room a little at a time, so a sender never waits
+			// forever on a writer that has stopped
+			while (!this.failed)
+			{
+				if (this.queue.offer(command, SEND_WAIT_MILLIS, 
+						TimeUnit.MILLISECONDS))
+				{ return true; }
+			}
+		}
+		catch (InterruptedException e)
+		{ Thread.currentThread().interrupt(); }
+		this.bufferPool.release(command);
+		return false;
+	}
+
+	public void run()
+	{
+		ByteBuffer[] batch = new ByteBuffer[MAX_BATCH];
+		try
+		{
+			while (!this.failed)
+			{
+				int count = this.collect(batch);
+				try
+				{ this.write(batch, count); }
+				catch (IOException e)
+				{
+					Log.error("Error writing packet");
+					this.failed = true;
+				}
+				for (int i = 0; i < count; i++)
+				{
+					this.bufferPool.release(batch[i]);
+					batch[i] = null;
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{ }
+
+		// Stop senders, and drop what they queued; a command queued just
+		// before the flag was seen is left to the garbage collector
+		this.failed = true;
+		this.queue.clear();
+	}
+
+	/**
+	 * Wait for commands and gather a batch of them.
+	 * @return number of commands in the batch
+	 */
+	private int collect(ByteBuffer[] batch) throws InterruptedException
+	{
+		batch[0] = this.queue.take();
+		int count = 1;
+		long bytes = batch[0].remaining();
+		long deadline = System.nanoTime() + this.flushDelayNanos;
+		while (count < MAX_BATCH && bytes < MAX_BATCH_BYTES)
+		{
+			ByteBuffer command = this.queue.poll();
+			if (null == command)
+			{
+				long wait = deadline - System.nanoTime();
+				if (wait <= 0)
+				{ break; }
+				command = this.queue.poll(wait, TimeUnit.NANOSECONDS);
+				if (null == command)
+				{ break; }
+			}
+			batch[count++] = command;
+			bytes += command.remaining();
+		}
+		return count;
+	}
+
+	private void write(ByteBuffer[] batch, int count) throws IOException
+	{
+		long remaining = 0;
+		for (int i = 0; i < count; i++)
+		{ remaining += batch[i].remaining(); }
+
+		int first = 0;
+		while (remaining > 0)
+		{
+			remaining -= this.channel.write(batch, first, count - first);
+			while (!batch[first].hasRemaining() && first < count - 1)
+			{ first++; }
+		}
+	}
+}
@@ -0,0 +1,214 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.wisc.cs.sdn.vnet.DeviceTasks;
+import edu.wisc.cs.sdn.vnet.Log;
+
+/**
+ * Moves packet handling off the thread reading from the VNS server. The
+ * reader hands each packet command to one of the worker threads through a
+ * lock-free ring of the worker's own, the worker runs the device's packet
+ * handling, and anything the device sends goes on to the writer thread. A
+ * slow packet therefore never stops the reader.
+ *
+ * With several workers, IPv4 packets are spread across them by a hash of
+ * their addresses, protocol and ports, so all packets of a flow are
+ * handled by the same worker and stay in order. ARP, multicast (such as
+ * RIP updates) and anything else that is not plain unicast IPv4 all go to
+ * the first worker, so the device's control traffic is never handled
+ * concurrently with itself.
+ */
+public class PacketPipeline
+{
+	/** What the reader does with a packet when the worker's ring is full */
+	public enum Overflow
+	{
+		/** Drop the packet and count it */
+		DROP,
+		/** Wait until the worker makes room */
+		BLOCK
+	}
+
+	/** Times a worker polls an empty ring before going to sleep */
+	private static final int SPINS = 100;
+
+	/** Offsets of fields in a packet command */
+	private static final int ETH = CommandPacket.HEADER_SIZE;
+	private static final int IP = ETH + 14;
+
+	/** Communication manager whose commands are handled */
+	private final VNSComm vnsComm;
+
+	/** What to do when a ring is full */
+	private final Overflow overflow;
+
+	/** Threads handling the commands */
+	private final Worker[] workers;
+
+	/** Number of packets dropped because a ring was full */
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * @param vnsComm communication manager whose packets are handled
+	 * @param workers number of worker threads
+	 * @param depth most packets waiting for each worker
+	 * @param overflow what to do with a packet when its worker is behind
+	 */
+	PacketPipeline(VNSComm vnsComm, int workers, int depth,
+			Overflow overflow)
+	{
+		this.vnsComm = vnsComm;
+		this.overflow = overflow;
+		this.workers = new Worker[workers];
+		for (int i = 0; i < workers; i++)
+		{
+			this.workers[i] = new Worker(depth,
+					(1 == workers) ? "packet-worker" : "packet-worker-" + i);
+		}
+	}
+
+	void start()
+	{
+		for (Worker worker : this.workers)
+		{ worker.thread.start(); }
+	}
+
+	/**
+	 * @return number of worker threads
+	 */
+	public int getWorkerCount()
+	{ return this.workers.length; }
+
+	/**
+	 * @return number of packets dropped because a worker was behind
+	 */
+	public long getDropped()
+	{ return this.dropped.get(); }
+
+	/**
+	 * Hand a packet command to the worker for its flow. Only called by the
+	 * reader.
+	 * @param command pooled buffer holding the command; it belongs to the
+	 *        pipeline from now on
+	 */
+	void dispatch(ByteBuffer command)
+	{
+		Worker worker = this.workers[0];
+		if (this.workers.length > 1)
+		{ worker = this.workers[select(command, this.workers.length)]; }
+
+		while (!worker.ring.offer(command))
+		{
+			if (Overflow.DROP == this.overflow)
+			{
+				if (0 == this.dropped.getAndIncrement())
+				{ Log.warn("Packet worker is behind, dropping packets"); }
+				this.vnsComm.getBufferPool().release(command);
+				return;
+			}
+			LockSupport.parkNanos(1000);
+		}
+		if (worker.sleeping)
+		{ LockSupport.unpark(worker.thread); }
+	}
+
+	/**
+	 * Choose the worker for a packet from the raw bytes of its frame,
+	 * without decoding it.
+	 * @param command buffer holding a packet command
+	 * @param workers number of workers
+	 * @return index of the worker
+	 */
+	static int select(ByteBuffer command, int workers)
+	{
+		int limit = command.limit();
+		if (limit < IP + 20 || command.getShort(ETH + 12) != 0x0800)
+		{ return 0; }
+
+		int versionIhl = command.get(IP) & 0xff;
+		int headerLength = (versionIhl & 0xf) * 4;
+		int dstAddr = command.getInt(IP + 16);
+		if ((versionIhl >> 4) != 4 || headerLength < 20
+				|| (dstAddr & 0xf0000000) == 0xe0000000)
+		{ return 0; }
+
+		int srcAddr = command.getInt(IP + 12);
+		int protocol = command.get(IP + 9);
+
+		// Fragments after the first carry no ports, so leave the ports out
+		// for every fragment to keep them with the rest of the datagram
+		int ports = 0;
+		boolean fragment = (command.getShort(IP + 6) & 0x3fff) != 0;
+		if ((6 == protocol || 17 == protocol) && !fragment
+				&& IP + headerLength + 4 <= limit)
+		{ ports = command.getInt(IP + headerLength); }
+
+		int hash = srcAddr * 31 + dstAddr;
+		hash = hash * 31 + protocol;
+		hash = hash * 31 + ports;
+		hash ^= hash >>> 16;
+		hash *= 0x85ebca6b;
+		hash ^= hash >>> 13;
+		hash *= 0xc2b2ae35;
+		hash ^= hash >>> 16;
+
+		// Use the high bits, so the choice of worker does not line up with
+		// the device's own use of the low bits, e.g. for equal-cost routes
+		return (int)(((hash >>> 16) * (long)workers) >>> 16);
+	}
+
+	/** A worker thread and the ring it takes commands from */
+	private class Worker implements Runnable
+	{
+		/** Commands waiting for the worker */
+		final SpscRing<ByteBuffer> ring;
+
+		/** Thread handling the commands */
+		final Thread thread;
+
+		/** Set while the worker is asleep waiting for a command */
+		volatile boolean sleeping;
+
+		Worker(int depth, String name)
+		{
+			this.ring = new SpscRing<ByteBuffer>(depth);
+			this.thread = DeviceTasks.newThread(name, this);
+		}
+
+		public void run()
+		{
+			int idle = 0;
+			while (true)
+			{
+				ByteBuffer command = this.ring.poll();
+				if (null == command)
+				{
+					if (++idle < SPINS)
+					{ continue; }
+
+					// Say we are going to sleep before checking the ring one
+					// last time, so the reader either sees the flag or we see
+					// its command
+					this.sleeping = true;
+					if (this.ring.isEmpty())
+					{ LockSupport.park(this); }
+					this.sleeping = false;
+					idle = 0;
+					continue;
+				}
+				idle = 0;
+
+				try
+				{ vnsComm.handlePacketCommand(command); }
+				catch (RuntimeException e)
+				{
+					Log.error("Error handling packet: " + e);
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package edu.wisc.cs.sdn.vnet.vns;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded lock-free queue between exactly one producer thread and one
+ * consumer thread. Each side only writes its own index, so neither takes
+ * a lock or retries a compare-and-set.
+ * @param <T> type of the items queued
+ */
+class SpscRing<T>
+{
+	/** Items in the ring; null once taken */
+	private final Object[] slots;
+
+	/** Mask turning a position into a slot index */
+	private final int mask;
+
+	/** Next position the consumer takes; only written by the consumer */
+	private final AtomicLong head = new AtomicLong();
+
+	/** Next position the producer fills; only written by the producer */
+	private final AtomicLong tail = new AtomicLong();
+
+	/** Producer's last view of head, so it rarely reads the consumer's
+	 *  index */
+	private long cachedHead;
+
+	/**
+	 * @param capacity most items held; rounded up to a power of two
+	 */
+	SpscRing(int capacity)
+	{
+		int size = 1;
+		while (size < capacity)
+		{ size <<= 1; }
+		this.slots = new Object[size];
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Add an item. Only called by the producer.
+	 * @return false if the ring is full
+	 */
+	boolean offer(T item)
+	{
+		long tail = this.tail.get();
+		if (tail - this.cachedHead >= this.slots.length)
+		{
+			this.cachedHead = this.head.get();
+			if (tail - this.cachedHead >= this.slots.length)
+			{ return false; }
+		}
+		this.slots[(int)tail & this.mask] = item;
+		// A full write, so a consumer that checks the ring after saying it
+		// is about to sleep always sees the item
+		this.tail.set(tail + 1);
+		return true;
+	}
+
+	/**
+	 * Take the oldest item. Only called by the consumer.
+	 * @return the item, or null if the ring is empty
+	 */
+	@SuppressWarnings("unchecked")
+	T poll()
+	{
+		long head = this.head.get();
+		if (head >= this.tail.get())
+		{ return null; }
+		int slot = (int)head & this.mask;
+		T item = (T)this.slots[slot];
+		this.slots[slot] = null;
+		this.head.lazySet(head + 1);
+		return item;
+	}
+
+	/**
+	 * @return true if the ring holds no items
+	 */
+	boolean isEmpty()
+	{ return this.head.get() >= this.tail.get(); }
+}
@@ -1,30 +1,111 @@
 package edu.wisc.cs.sdn.vnet.vns;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 
 import net.floodlightcontroller.packet.Ethernet;
 import net.floodlightcontroller.packet.MACAddress;
 
 import edu.wisc.cs.sdn.vnet.Device;
+import edu.wisc.cs.sdn.vnet.DeviceTasks;
 import edu.wisc.cs.sdn.vnet.Iface;
+import edu.wisc.cs.sdn.vnet.Log;
 
 public class VNSComm 
 {
-    private Socket socket;
+    /** Largest command accepted from the server */
+    private static final int MAX_COMMAND_SIZE = 10000;
+
+    /** Default for the most commands waiting to be written */
+    private static final int WRITE_QUEUE_DEPTH = 256;
+
+    /** Most buffers kept for reuse; enough for full queues at their
+     *  default depths */
+    private static final int BUFFER_POOL_SIZE = 512;
+
+    /** Size of the buffer data from the server is read into */
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+
+    /** How long the writer waits for more commands before writing */
+    private static final long WRITE_FLUSH_DELAY_NANOS = 20000;
+
+    private SocketChannel channel;
     private Device device;
 
+    /** Data read from the server but not yet handled, between the position
+     *  and the limit. The server is read in large chunks, so one read 
+     *  usually brings in several commands. */
+    private final ByteBuffer readBuffer = 
+	ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+    /** Writes queued commands to the server; started once connected */
+    private CommandWriter writer;
+
+    /** Most commands waiting to be written before senders wait */
+    private int writeQueueDepth = WRITE_QUEUE_DEPTH;
+
+    /** Hands packets to worker threads; null if the reading thread
+     *  handles them */
+    private PacketPipeline pipeline;
+
+    /** Buffer holding the command the current thread is handling, until
+     *  the device sends the frame in it back out and so hands it to the
+     *  writer */
+    private final ThreadLocal<ByteBuffer> received = 
+	new ThreadLocal<ByteBuffer>();
+
+    /** Device's interfaces by the name field of a packet command; built
+     *  once the interfaces are known */
+    private volatile InterfaceIndex interfaceIndex = new InterfaceIndex();
+
+    /** Buffers commands are read into and packets are serialized into */
+    private final BufferPool bufferPool = 
+	new BufferPool(MAX_COMMAND_SIZE, BUFFER_POOL_SIZE);
+
     public VNSComm(Device device)
     { 
 	this.device = device;
 	this.device.setVNSComm(this);
+	this.readBuffer.limit(0);
     }
 
+    /**
+     * Set how many commands may wait to be written before threads sending
+     * packets wait for the writer. Must be called before connecting.
+     * @param depth most commands waiting to be written
+     */
+    public void setWriteQueueDepth(int depth)
+    { this.writeQueueDepth = depth; }
+
+    /**
+     * Handle packets on worker threads instead of the thread reading from
+     * the server. Must be called before packets are read. With more than
+     * one worker the device must handle packets concurrently; each flow is
+     * still handled by one worker at a time.
+     * @param workers number of worker threads
+     * @param depth most packets waiting for each worker
+     * @param overflow what to do with a packet when its worker is behind
+     */
+    public void startPipeline(int workers, int depth, 
+	    PacketPipeline.Overflow overflow)
+    {
+	this.pipeline = new PacketPipeline(this, workers, depth, overflow);
+	this.pipeline.start();
+    }
+
+    /**
+     * @return the pipeline handing packets to worker threads; null if the
+     *         reading thread handles them
+     */
+    public PacketPipeline getPipeline()
+    { return this.pipeline; }
+
     public boolean connectToServer(short port, String server)
     {
 	// Grab server address from name
@@ -39,7 +120,10 @@ public class VNSComm
 
 	// Create socket and attempt to connect to the server
 	try 
-	{ socket = new Socket(addr, port); }
+	{ 
+	    channel = SocketChannel.open(new InetSocketAddress(addr, port)); 
+	    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+	}
 	catch (IOException e) 
 	{
 	    e.printStackTrace();
@@ -53,9 +137,9 @@ public class VNSComm
 
 	try
 	{
-	    OutputStream outStream = socket.getOutputStream();
-	    outStream.write(buf);
-	    outStream.flush();
+	    ByteBuffer open = ByteBuffer.wrap(buf);
+	    while (open.hasRemaining())
+	    { channel.write(open); }
 	}
 	catch(IOException e)
 	{
@@ -63,6 +147,11 @@ public class VNSComm
 	    return false;
 	}
 
+	// Everything else is written by the writer thread
+	this.writer = new CommandWriter(channel, this.bufferPool, 
+		this.writeQueueDepth, WRITE_FLUSH_DELAY_NANOS);
+	DeviceTasks.newThread("vns-writer", this.writer).start();
+
 	return true; 
     }
 
@@ -87,17 +176,19 @@ public class VNSComm
 		    lastIface.setMacAddress(new MACAddress(hwEntry.value));
 		    break;
 		default:
-		    System.out.println(String.format(" %d", hwEntry.mKey));
+		    Log.info(String.format(" %d", hwEntry.mKey));
 	    }
 	}
+	this.interfaceIndex = new InterfaceIndex(this.device);
+	this.device.interfacesConfigured();
 
-	System.out.println("Device interfaces:");
+	Log.info("Device interfaces:");
 	if (0 == this.device.getInterfaces().size())
-	{ System.out.println(" Interface list empty"); }
+	{ Log.info(" Interface list empty"); }
 	else
 	{
 	    for (Iface iface : this.device.getInterfaces().values())
-	    { System.out.println(iface.toString()); }
+	    { Log.info(iface.toString()); }
 	}
 
 	return true;
@@ -106,80 +197,96 @@ public class VNSComm
     public boolean readFromServer()
     { return this.readFromServerExpect(0); }
 
+    /**
+     * @return pool of the buffers commands are read and sent in
+     */
+    public BufferPool getBufferPool()
+    { return this.bufferPool; }
+
     public boolean readFromServerExpect(int expectedCmd)
     {
-	int bytesRead = 0;
-	InputStream inStream = null;
-
-	// Get input stream
-	try 
-	{ inStream = this.socket.getInputStream(); } 
-	catch (IOException e) 
+	ByteBuffer buf = this.bufferPool.acquire();
+	this.received.set(buf);
+	try
+	{ return this.readFromServerExpect(expectedCmd, buf); }
+	finally
 	{
-	    e.printStackTrace();
-	    return false;
+	    // The buffer belongs to the writer if the frame in it was sent
+	    if (this.received.get() == buf)
+	    { this.bufferPool.release(buf); }
+	    this.received.remove();
 	}
+    }
 
-	// Attempt to read the size of the incoming packet
-	byte[] lenBytes = new byte[4];
-	while (bytesRead < 4)
+    /**
+     * Read from the server until a number of bytes are buffered.
+     * @param count bytes needed; at most the size of the read buffer
+     * @throws IOException if the connection fails or is closed
+     */
+    private void fill(int count) throws IOException
+    {
+	if (this.readBuffer.remaining() >= count)
+	{ return; }
+	this.readBuffer.compact();
+	try
 	{
-	    try 
+	    while (this.readBuffer.position() < count)
 	    {
-		int ret = inStream.read(lenBytes, bytesRead, 4 - bytesRead);
-		if (ret < 0)
-		{ throw new Exception(); }
-		bytesRead += ret;
-	    } 
-	    catch (Exception e) 
-	    {
-		e.printStackTrace();
-		return false;
+		if (this.channel.read(this.readBuffer) < 0)
+		{ throw new EOFException(); }
 	    }
 	}
+	finally
+	{ this.readBuffer.flip(); }
+    }
 
-	int len = ByteBuffer.wrap(lenBytes).getInt();
-
-	if (len > 10000 || len < 0)
+    private boolean readFromServerExpect(int expectedCmd, ByteBuffer buf)
+    {
+	// Attempt to read the size of the incoming packet
+	try 
+	{ this.fill(4); }
+	catch (IOException e) 
 	{
-	    System.err.println(String.format(
-			"Error: comamnd length too large %d", len));
-	    try { socket.close(); } catch (IOException e) { }
+	    e.printStackTrace();
 	    return false;
 	}
 
-	// Allocate buffer
-	ByteBuffer buf = ByteBuffer.allocate(len);
+	int len = this.readBuffer.getInt(this.readBuffer.position());
 
-	// Set first field of command since we've already read it
-	buf.putInt(len);
+	if (len > MAX_COMMAND_SIZE || len < 8)
+	{
+	    Log.error(String.format(
+			"Error: comamnd length too large %d", len));
+	    try { channel.close(); } catch (IOException e) { }
+	    return false;
+	}
 
 	// Read the rest of the command
-	while (bytesRead < len)
+	try 
+	{ this.fill(len); }
+	catch (IOException e) 
 	{
-	    try 
-	    {
-		int ret = inStream.read(buf.array(), bytesRead, len - bytesRead);
-		if (ret < 0)
-		{ throw new Exception(); }
-		bytesRead += ret;
-	    } 
-	    catch (Exception e) 
-	    {
-		e.printStackTrace();
-		System.err.println("Error: failed reading command body");
-		try { socket.close(); } catch (IOException e2) { }
-		return false;
-	    }
+	    e.printStackTrace();
+	    Log.error("Error: failed reading command body");
+	    try { channel.close(); } catch (IOException e2) { }
+	    return false;
 	}
 
+	// Copy the command out of the read buffer, so the device may keep
+	// and modify it
+	ByteBuffer chunk = this.readBuffer.duplicate();
+	chunk.limit(chunk.position() + len);
+	buf.put(chunk);
+	buf.flip();
+	this.readBuffer.position(chunk.limit());
+
 	// Make sure the command is what we expected if we were expecting something
-	int command = buf.getInt();
+	int command = buf.getInt(4);
 	if (expectedCmd != 0 && command != expectedCmd)
 	{
 	    if (command != Command.VNS_CLOSE) // VNS_CLOSE is always ok
 	    {
-		System.err.println(String.format(
+		Log.error(String.format(
 			    "Error: expected command %d but got %d", expectedCmd,
 			    command));
 		return false;
@@ -190,23 +297,21 @@ public class VNSComm
 	switch(command)
 	{
 	    case Command.VNS_PACKET:
-		CommandPacket cmdPkt = new CommandPacket();
-		cmdPkt.deserialize(buf);
-
-		// Log packet
-		if (this.device.getLogFile() != null)
-		{ this.device.getLogFile().dump(cmdPkt.etherPacket); }
-
-		// Pass to device, student's code should take over here
-		this.device.handlePacket(cmdPkt.etherPacket, 
-			this.device.getInterface(cmdPkt.mInterfaceName));
+		if (this.pipeline != null)
+		{
+		    // The worker takes the buffer over
+		    this.received.set(null);
+		    this.pipeline.dispatch(buf);
+		}
+		else
+		{ this.handlePacket(buf); }
 		break;
 
 	    case Command.VNS_CLOSE:
-		System.err.println("VNS server closed session.");
+		Log.error("VNS server closed session.");
 		CommandClose cmdClose = new CommandClose();
 		cmdClose.deserialize(buf);
-		System.err.println("Reason: " + new String(cmdClose.mErrorMessage));
+		Log.error("Reason: " + new String(cmdClose.mErrorMessage));
 		return true;
 
 	    case Command.VNS_HW_INFO:
@@ -216,31 +321,176 @@ public class VNSComm
 		break;
 
 	    default:
-		System.err.println(String.format("unknown command: %d", command));
+		Log.warn(String.format("unknown command: %d", command));
 		break;
 	}
 
 	return true;
     }
 
+    /**
+     * Handle a packet command on a pipeline worker thread and release its
+     * buffer, unless the device sent the frame in it back out.
+     * @param buf pooled buffer holding the command
+     */
+    void handlePacketCommand(ByteBuffer buf)
+    {
+	this.received.set(buf);
+	try
+	{ this.handlePacket(buf); }
+	finally
+	{
+	    if (this.received.get() == buf)
+	    { this.bufferPool.release(buf); }
+	    this.received.remove();
+	}
+    }
+
+    /**
+     * Pass the frame in a packet command to the device.
+     * @param buf buffer holding the command
+     */
+    private void handlePacket(ByteBuffer buf)
+    {
+	// Let the device handle the raw frame if it can; the command header
+	// stays in front of it so the frame can be sent back out without
+	// copying
+	Iface inIface = this.findInterface(buf);
+	buf.position(CommandPacket.HEADER_SIZE);
+	if (this.device.getLogFile() != null)
+	{ 
+	    this.device.getLogFile().dump(buf.array(), 
+		    CommandPacket.HEADER_SIZE, 
+		    buf.limit() - CommandPacket.HEADER_SIZE); 
+	}
+	if (this.device.handleFrame(buf, inIface))
+	{ return; }
+	buf.position(0);
+
+	CommandPacket cmdPkt = new CommandPacket();
+	cmdPkt.deserialize(buf);
+
+	// Pass to device, student's code should take over here
+	this.device.handlePacket(cmdPkt.etherPacket, inIface);
+    }
+
+    /**
+     * Find the interface a packet command names, comparing the name field
+     * in the buffer with the known names rather than decoding it.
+     * @param buf buffer holding a packet command
+     * @return the interface; null if the device has none by that name
+     */
+    private Iface findInterface(ByteBuffer buf)
+    {
+	Iface iface = this.interfaceIndex.find(buf.getLong(8), 
+		buf.getLong(16));
+	if (iface != null)
+	{ return iface; }
+
+	// Not a name we know as padded by the server; decode it
+	byte[] nameBytes = new byte[16];
+	buf.position(8);
+	buf.get(nameBytes);
+	return this.device.getInterface(new String(nameBytes).trim());
+    }
+
+    /**
+     * The device's interfaces, each with the 16-byte name field of packet
+     * commands for it held as two longs.
+     */
+    private static class InterfaceIndex
+    {
+	final Iface[] ifaces;
+	final long[] names;
+
+	InterfaceIndex()
+	{
+	    this.ifaces = new Iface[0];
+	    this.names = new long[0];
+	}
+
+	InterfaceIndex(Device device)
+	{
+	    this.ifaces = device.getInterfaces().values().toArray(new Iface[0]);
+	    this.names = new long[2 * this.ifaces.length];
+	    ByteBuffer name = ByteBuffer.allocate(16);
+	    for (int i = 0; i < this.ifaces.length; i++)
+	    {
+		// Padded the way CommandPacket writes names
+		name.clear();
+		String ifaceName = this.ifaces[i].getName();
+		for (int j = 0; j < 16; j++)
+		{ name.put((j < ifaceName.length()) ? (byte)ifaceName.charAt(j) : 0); }
+		this.names[2 * i] = name.getLong(0);
+		this.names[2 * i + 1] = name.getLong(8);
+	    }
+	}
+
+	Iface find(long high, long low)
+	{
+	    for (int i = 0; i < this.ifaces.length; i++)
+	    {
+		if (this.names[2 * i] == high && this.names[2 * i + 1] == low)
+		{ return this.ifaces[i]; }
+	    }
+	    return null;
+	}
+    }
+
     public boolean etherAddrsMatchInterface(Ethernet etherPacket, 
 	    String ifaceName)
     {
 	Iface iface = this.device.getInterface(ifaceName);
 	if (null == iface)
 	{
-	    System.err.println("** Error, interface " + ifaceName 
+	    Log.error("** Error, interface " + ifaceName 
 		    + ", does not exist");
 	    return false;
 	}
 	if (!iface.getMacAddress().equals(etherPacket.getSourceMAC()))
 	{
-	    System.err.println("** Error, source address does not match interface"); 
+	    Log.error("** Error, source address does not match interface"); 
 	    return false;
 	}
 	return true;
     }
 
+    /**
+     * Send a raw Ethernet frame. If the frame is in the buffer of the
+     * command being handled and has room for the command header in front
+     * of it, the header is written there and the buffer itself is queued
+     * for writing; otherwise the frame is copied into a buffer of its own.
+     * @param frame buffer holding the frame between its position and limit
+     * @param ifaceName name of the interface to send the frame out of
+     * @return true if the frame was queued for sending, otherwise false
+     */
+    public boolean sendFrame(ByteBuffer frame, String ifaceName)
+    {
+	int length = frame.remaining();
+	ByteBuffer command;
+	ByteBuffer received = this.received.get();
+	if (received != null && frame.hasArray() 
+		&& frame.array() == received.array()
+		&& frame.position() >= CommandPacket.HEADER_SIZE)
+	{
+	    // Take the buffer over from the reader
+	    this.received.set(null);
+	    command = received;
+	    command.limit(frame.limit());
+	    command.position(frame.position() - CommandPacket.HEADER_SIZE);
+	}
+	else
+	{
+	    command = this.bufferPool.acquire(
+		    CommandPacket.HEADER_SIZE + length);
+	    command.position(CommandPacket.HEADER_SIZE);
+	    command.put(frame.duplicate());
+	    command.flip();
+	}
+	CommandPacket.writeHeader(command.duplicate(), ifaceName, length);
+	return this.sendCommand(command);
+    }
+
     // sr_send_packet
     public boolean sendPacket(Ethernet etherPacket, String ifaceName)
     {
@@ -248,29 +498,36 @@ public class VNSComm
 	cmdPacket.mInterfaceName = ifaceName;
 	cmdPacket.etherPacket = etherPacket;
 
-	byte[] buf = cmdPacket.serialize();
-
 	/*if (!etherAddrsMatchInterface(etherPacket, ifaceName))
 	  {
 	  System.err.println("*** Error: problem with ethernet header, check log");
 	  return false;
 	  }*/
 
+	// Serialize the command and frame together into a pooled buffer
+	ByteBuffer buf = this.bufferPool.acquire(cmdPacket.getSerializedLength());
+	cmdPacket.serialize(buf);
+	buf.flip();
+	return this.sendCommand(buf);
+    }
+
+    /**
+     * Log the frame in a packet command and queue the command for writing.
+     * @param command pooled buffer holding the command between its 
+     *        position and limit; it belongs to the writer from now on
+     * @return true if the command was queued, otherwise false
+     */
+    private boolean sendCommand(ByteBuffer command)
+    {
 	// Log packet
 	if (this.device.getLogFile() != null)
-	{ this.device.getLogFile().dump(etherPacket); }
-
-	try
-	{
-	    OutputStream outStream = socket.getOutputStream();
-	    outStream.write(buf);
-	    outStream.flush();
+	{ 
+	    this.device.getLogFile().dump(command.array(), 
+		    command.arrayOffset() + command.position() 
+		    + CommandPacket.HEADER_SIZE, 
+		    command.remaining() - CommandPacket.HEADER_SIZE); 
 	}
-	catch(IOException e)
-	{
-	    System.err.println("Error writing packet");
-	    return false;
-	}
-	return true;
+
+	return this.writer.send(command);
     }
 }
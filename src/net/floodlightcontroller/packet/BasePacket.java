@@ -17,15 +17,40 @@
 
 package net.floodlightcontroller.packet;
 
+import java.nio.ByteBuffer;
 
 /**
 *
 * @author David Erickson (daviderickson@cs.stanford.edu)
 */
 public abstract class BasePacket implements IPacket {
+    /** Whether deserialize leaves payloads undecoded until first accessed */
+    private static volatile boolean lazyDecoding = false;
+
     protected IPacket parent;
     protected IPacket payload;
 
+    /** Undecoded payload bytes, a slice of the array the packet was
+     *  deserialized from; null once the payload has been decoded or set */
+    private byte[] pendingData;
+    private int pendingOffset;
+    private int pendingLength;
+
+    /**
+     * @param lazy true to decode payloads only when getPayload is first
+     *        called, false to decode every layer in deserialize
+     */
+    public static void setLazyDecoding(boolean lazy) {
+        lazyDecoding = lazy;
+    }
+
+    /**
+     * @return true if payloads are decoded when first accessed
+     */
+    public static boolean isLazyDecoding() {
+        return lazyDecoding;
+    }
+
     /**
      * @return the parent
      */
@@ -48,6 +73,13 @@ public abstract class BasePacket implements IPacket {
      */
     @Override
     public IPacket getPayload() {
+        if (this.pendingData != null) {
+            byte[] data = this.pendingData;
+            this.pendingData = null;
+            this.payload = this.decodePayload(data, this.pendingOffset,
+                    this.pendingLength);
+            this.payload.setParent(this);
+        }
         return payload;
     }
 
@@ -56,9 +88,78 @@ public abstract class BasePacket implements IPacket {
      */
     @Override
     public IPacket setPayload(IPacket payload) {
+        this.pendingData = null;
         this.payload = payload;
         return this;
     }
+
+    /**
+     * Sets the payload from the bytes following this packet's header,
+     * decoding them now or, in lazy mode, when the payload is first
+     * accessed. Called at the end of deserialize.
+     * @param data the array being deserialized
+     * @param offset offset of the payload
+     * @param length length of the payload
+     */
+    protected void setPayloadData(byte[] data, int offset, int length) {
+        if (lazyDecoding) {
+            this.payload = null;
+            this.pendingData = data;
+            this.pendingOffset = offset;
+            this.pendingLength = length;
+        } else {
+            this.pendingData = null;
+            this.payload = this.decodePayload(data, offset, length);
+            this.payload.setParent(this);
+        }
+    }
+
+    /**
+     * Decodes payload bytes. Packets whose payload type depends on a header
+     * field override this to pick the payload class.
+     * @return the decoded payload
+     */
+    protected IPacket decodePayload(byte[] data, int offset, int length) {
+        return new Data().deserialize(data, offset, length);
+    }
+
+    /**
+     * @return the number of bytes serializePayload writes
+     */
+    protected int getPayloadLength() {
+        if (this.pendingData != null)
+            return this.pendingLength;
+        if (payload == null)
+            return 0;
+        return payload.getSerializedLength();
+    }
+
+    /**
+     * Serializes the payload into a buffer. A payload that was never
+     * decoded is copied from the received bytes as is.
+     * @param dst buffer to write to, at its position
+     */
+    protected void serializePayload(ByteBuffer dst) {
+        if (this.pendingData != null) {
+            dst.put(this.pendingData, this.pendingOffset, this.pendingLength);
+            return;
+        }
+        if (payload == null)
+            return;
+        payload.setParent(this);
+        payload.serialize(dst);
+    }
+
+    /**
+     * Serializes this packet and all payloads into a new array sized by
+     * getSerializedLength, so each layer writes its bytes exactly once.
+     */
+    @Override
+    public byte[] serialize() {
+        byte[] data = new byte[this.getSerializedLength()];
+        this.serialize(ByteBuffer.wrap(data));
+        return data;
+    }
     
     @Override
     public void resetChecksum() {
@@ -73,6 +174,7 @@ public abstract class BasePacket implements IPacket {
     public int hashCode() {
         final int prime = 6733;
         int result = 1;
+        IPacket payload = this.getPayload();
         result = prime * result + ((payload == null) ? 0 : payload.hashCode());
         return result;
     }
@@ -89,10 +191,12 @@ public abstract class BasePacket implements IPacket {
         if (!(obj instanceof BasePacket))
             return false;
         BasePacket other = (BasePacket) obj;
+        IPacket payload = this.getPayload();
+        IPacket otherPayload = other.getPayload();
         if (payload == null) {
-            if (other.payload != null)
+            if (otherPayload != null)
                 return false;
-        } else if (!payload.equals(other.payload))
+        } else if (!payload.equals(otherPayload))
             return false;
         return true;
     }
@@ -109,7 +213,7 @@ public abstract class BasePacket implements IPacket {
         // cloning. Not the most efficient way but simple. We can revisit
         // if we hit performance problems.
         byte[] data = this.serialize();
-        pkt.deserialize(this.serialize(), 0, data.length);
+        pkt.deserialize(data, 0, data.length);
         pkt.setParent(this.parent);
         return pkt;
     }
@@ -17,6 +17,7 @@
 
 package net.floodlightcontroller.packet;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -58,9 +59,20 @@ public class Data extends BasePacket {
         return this.data;
     }
 
+    @Override
+    public void serialize(ByteBuffer bb) {
+        if (this.data != null)
+            bb.put(this.data);
+    }
+
+    @Override
+    public int getSerializedLength() {
+        return (this.data == null) ? 0 : this.data.length;
+    }
+
     @Override
     public IPacket deserialize(byte[] data, int offset, int length) {
-        this.data = Arrays.copyOfRange(data, offset, data.length);
+        this.data = Arrays.copyOfRange(data, offset, offset + length);
         return this;
     }
 
@@ -0,0 +1,70 @@
+package net.floodlightcontroller.packet;
+
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+/**
+ * Maps a protocol number (ethertype, IP protocol or transport port) to a
+ * factory for the packet class that decodes it. Factories are kept in an
+ * array indexed by the unsigned key, so a lookup neither boxes the key nor
+ * uses reflection.
+ *
+ * Register decoders at startup. Registration copies the table, so threads
+ * decoding packets always see either the old or the new table, never a
+ * partial one.
+ */
+public class DecoderRegistry {
+    private final int mask;
+    private volatile Supplier<? extends IPacket>[] decoders;
+
+    /**
+     * @param bits width of the keys in bits, e.g. 16 for ethertypes and
+     *        ports or 8 for IP protocols
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public DecoderRegistry(int bits) {
+        this.mask = (1 << bits) - 1;
+        this.decoders = new Supplier[1 << bits];
+    }
+
+    /**
+     * Register the decoder for a key, replacing any existing one.
+     * @param key ethertype, protocol or port; only the low bits are used
+     * @param decoder creates an empty packet to deserialize into
+     * @return this
+     */
+    public synchronized DecoderRegistry register(int key,
+            Supplier<? extends IPacket> decoder) {
+        Supplier<? extends IPacket>[] decoders =
+                Arrays.copyOf(this.decoders, this.decoders.length);
+        decoders[key & mask] = decoder;
+        this.decoders = decoders;
+        return this;
+    }
+
+    /**
+     * Remove the decoder for a key, if one is registered.
+     * @param key ethertype, protocol or port
+     */
+    public void unregister(int key) {
+        register(key, null);
+    }
+
+    /**
+     * @param key ethertype, protocol or port
+     * @return true if a decoder is registered for the key
+     */
+    public boolean contains(int key) {
+        return this.decoders[key & mask] != null;
+    }
+
+    /**
+     * Create a packet to decode a payload with.
+     * @param key ethertype, protocol or port
+     * @return a new packet, or null if no decoder is registered for the key
+     */
+    public IPacket create(int key) {
+        Supplier<? extends IPacket> decoder = this.decoders[key & mask];
+        return (decoder == null) ? null : decoder.get();
+    }
+}
@@ -19,8 +19,6 @@ package net.floodlightcontroller.packet;
 
 import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
 
 import org.openflow.util.HexString;
 
@@ -37,13 +35,12 @@ public class Ethernet extends BasePacket {
     public static final short TYPE_BSN = (short) 0x8942;
     public static final short VLAN_UNTAGGED = (short)0xffff;
     public static final short DATALAYER_ADDRESS_LENGTH = 6; // bytes
-    public static Map<Short, Class<? extends IPacket>> etherTypeClassMap;
+    public static final DecoderRegistry etherTypeDecoders = new DecoderRegistry(16);
 
     static {
-        etherTypeClassMap = new HashMap<Short, Class<? extends IPacket>>();
-        etherTypeClassMap.put(TYPE_ARP, ARP.class);
-        etherTypeClassMap.put(TYPE_RARP, ARP.class);
-        etherTypeClassMap.put(TYPE_IPv4, IPv4.class);
+        etherTypeDecoders.register(TYPE_ARP, ARP::new);
+        etherTypeDecoders.register(TYPE_RARP, ARP::new);
+        etherTypeDecoders.register(TYPE_IPv4, IPv4::new);
     }
 
     protected MACAddress destinationMACAddress;
@@ -91,6 +88,15 @@ public class Ethernet extends BasePacket {
         return this;
     }
 
+    /**
+     * @param destinationMACAddress the destination MAC to set, in the low
+     *        48 bits
+     */
+    public Ethernet setDestinationMACAddress(long destinationMACAddress) {
+        this.destinationMACAddress = MACAddress.valueOf(destinationMACAddress);
+        return this;
+    }
+
     /**
      * @return the source MACAddress as a byte array
      */
@@ -197,19 +203,19 @@ public class Ethernet extends BasePacket {
         return this;
     }
 
-    public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+    @Override
+    public int getSerializedLength() {
         int length = 14 + ((vlanID == VLAN_UNTAGGED) ? 0 : 4) +
-                          ((payloadData == null) ? 0 : payloadData.length);
+                          this.getPayloadLength();
         if (pad && length < 60) {
             length = 60;
         }
-        byte[] data = new byte[length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
+        return length;
+    }
+
+    @Override
+    public void serialize(ByteBuffer bb) {
+        int end = bb.position() + this.getSerializedLength();
         bb.put(destinationMACAddress.toBytes());
         bb.put(sourceMACAddress.toBytes());
         if (vlanID != VLAN_UNTAGGED) {
@@ -217,12 +223,11 @@ public class Ethernet extends BasePacket {
             bb.putShort((short) ((priorityCode << 13) | (vlanID & 0x0fff)));
         }
         bb.putShort(etherType);
-        if (payloadData != null)
-            bb.put(payloadData);
+        this.serializePayload(bb);
         if (pad) {
-            Arrays.fill(data, bb.position(), data.length, (byte)0x0);
+            while (bb.position() < end)
+                bb.put((byte)0x0);
         }
-        return data;
     }
 
     @Override
@@ -253,20 +258,17 @@ public class Ethernet extends BasePacket {
         }
         this.etherType = etherType;
         
-        IPacket payload;
-        if (Ethernet.etherTypeClassMap.containsKey(this.etherType)) {
-            Class<? extends IPacket> clazz = Ethernet.etherTypeClassMap.get(this.etherType);
-            try {
-                payload = clazz.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Error parsing payload for Ethernet packet", e);
-            }
-        } else {
+        this.setPayloadData(data, bb.position(), bb.limit()-bb.position());
+        return this;
+    }
+
+    @Override
+    protected IPacket decodePayload(byte[] data, int offset, int length) {
+        IPacket payload = Ethernet.etherTypeDecoders.create(this.etherType);
+        if (payload == null) {
             payload = new Data();
         }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
-        return this;
+        return payload.deserialize(data, offset, length);
     }
 
     /**
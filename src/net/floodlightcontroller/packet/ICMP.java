@@ -81,46 +81,40 @@ public class ICMP extends BasePacket {
      *      -checksum : 0
      *      -length : 0
      */
-    public byte[] serialize() {
-        int length = 4;
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-            length += payloadData.length;
-        }
-
-        byte[] data = new byte[length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
+    public void serialize(ByteBuffer bb) {
+        int start = bb.position();
+        int length = 4 + this.getPayloadLength();
 
         bb.put(this.icmpType);
         bb.put(this.icmpCode);
         bb.putShort(this.checksum);
-        if (payloadData != null)
-            bb.put(payloadData);
+        this.serializePayload(bb);
 
         if (this.parent != null && this.parent instanceof IPv4)
             ((IPv4)this.parent).setProtocol(IPv4.PROTOCOL_ICMP);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
             int accumulation = 0;
 
             for (int i = 0; i < length / 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
+                accumulation += 0xffff & bb.getShort(start + i * 2);
             }
             // pad to an even number of shorts
             if (length % 2 > 0) {
-                accumulation += (bb.get() & 0xff) << 8;
+                accumulation += (bb.get(start + length - 1) & 0xff) << 8;
             }
 
             accumulation = ((accumulation >> 16) & 0xffff)
                     + (accumulation & 0xffff);
             this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(2, this.checksum);
+            bb.putShort(start + 2, this.checksum);
         }
-        return data;
+    }
+
+    @Override
+    public int getSerializedLength() {
+        return 4 + this.getPayloadLength();
     }
 
     /* (non-Javadoc)
@@ -164,9 +158,7 @@ public class ICMP extends BasePacket {
         this.icmpCode = bb.get();
         this.checksum = bb.getShort();
         
-        this.payload = new Data();
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        this.setPayloadData(data, bb.position(), bb.limit()-bb.position());
         return this;
     }
 }
@@ -17,6 +17,8 @@
 
 package net.floodlightcontroller.packet;
 
+import java.nio.ByteBuffer;
+
 /**
 *
 * @author David Erickson (daviderickson@cs.stanford.edu)
@@ -60,6 +62,21 @@ public interface IPacket {
      */
     public byte[] serialize();
 
+    /**
+     * Sets all payloads parent packet if applicable, then serializes this 
+     * packet and all payloads into a buffer, starting at its position and
+     * leaving the position just after the last byte written
+     * @param dst big-endian buffer with at least getSerializedLength() bytes
+     *        remaining
+     */
+    public void serialize(ByteBuffer dst);
+
+    /**
+     * @return the number of bytes serialize produces for this packet and
+     *         all payloads
+     */
+    public int getSerializedLength();
+
     /**
      * Deserializes this packet layer and all possible payloads
      * @param data
@@ -23,8 +23,6 @@ package net.floodlightcontroller.packet;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * @author David Erickson (daviderickson@cs.stanford.edu)
@@ -34,13 +32,12 @@ public class IPv4 extends BasePacket {
     public static final byte PROTOCOL_ICMP = 0x1;
     public static final byte PROTOCOL_TCP = 0x6;
     public static final byte PROTOCOL_UDP = 0x11;
-    public static Map<Byte, Class<? extends IPacket>> protocolClassMap;
+    public static final DecoderRegistry protocolDecoders = new DecoderRegistry(8);
 
     static {
-        protocolClassMap = new HashMap<Byte, Class<? extends IPacket>>();
-        protocolClassMap.put(PROTOCOL_ICMP, ICMP.class);
-        protocolClassMap.put(PROTOCOL_TCP, TCP.class);
-        protocolClassMap.put(PROTOCOL_UDP, UDP.class);
+        protocolDecoders.register(PROTOCOL_ICMP, ICMP::new);
+        protocolDecoders.register(PROTOCOL_TCP, TCP::new);
+        protocolDecoders.register(PROTOCOL_UDP, UDP::new);
     }
 
     protected byte version;
@@ -215,6 +212,63 @@ public class IPv4 extends BasePacket {
         super.resetChecksum();
     }
 
+    /**
+     * Verifies the header checksum from the header fields alone, without
+     * serializing the payload.
+     * @return true if the one's complement sum of the header is 0xffff
+     */
+    public boolean isChecksumValid() {
+        int accumulation = 0;
+        accumulation += ((this.version & 0xf) << 12)
+                | ((this.headerLength & 0xf) << 8) | (this.diffServ & 0xff);
+        accumulation += this.totalLength & 0xffff;
+        accumulation += this.identification & 0xffff;
+        accumulation += ((this.flags & 0x7) << 13) | (this.fragmentOffset & 0x1fff);
+        accumulation += ((this.ttl & 0xff) << 8) | (this.protocol & 0xff);
+        accumulation += this.checksum & 0xffff;
+        accumulation += this.sourceAddress >>> 16;
+        accumulation += this.sourceAddress & 0xffff;
+        accumulation += this.destinationAddress >>> 16;
+        accumulation += this.destinationAddress & 0xffff;
+        if (this.options != null) {
+            for (int i = 0; i + 1 < this.options.length; i += 2) {
+                accumulation += ((this.options[i] & 0xff) << 8)
+                        | (this.options[i + 1] & 0xff);
+            }
+        }
+        accumulation = (accumulation >> 16) + (accumulation & 0xffff);
+        accumulation += accumulation >> 16;
+        return (accumulation & 0xffff) == 0xffff;
+    }
+
+    /**
+     * Decrements the TTL and adjusts the checksum to match, without
+     * recomputing it over the whole header.
+     * @return this
+     */
+    public IPv4 decrementTtl() {
+        short oldWord = (short) (((this.ttl & 0xff) << 8) | (this.protocol & 0xff));
+        this.ttl--;
+        short newWord = (short) (((this.ttl & 0xff) << 8) | (this.protocol & 0xff));
+        this.checksum = updateChecksum(this.checksum, oldWord, newWord);
+        return this;
+    }
+
+    /**
+     * Adjusts a one's complement checksum for a change to one 16-bit word
+     * it covers, as described in RFC 1624: HC' = ~(~HC + ~m + m').
+     * @param checksum the checksum before the change
+     * @param oldWord the word before the change
+     * @param newWord the word after the change
+     * @return the checksum after the change
+     */
+    public static short updateChecksum(short checksum, short oldWord, short newWord) {
+        int sum = (~checksum & 0xffff) + (~oldWord & 0xffff) + (newWord & 0xffff);
+        sum = (sum >> 16) + (sum & 0xffff);
+        sum += sum >> 16;
+        return (short) ~sum;
+    }
+
     /**
      * @return the sourceAddress
      */
@@ -286,23 +340,21 @@ public class IPv4 extends BasePacket {
      *      -headerLength : 0
      *      -totalLength : 0
      */
-    public byte[] serialize() {
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-        }
+    public void serialize(ByteBuffer bb) {
+        int start = bb.position();
 
         int optionsLength = 0;
         if (this.options != null)
             optionsLength = this.options.length / 4;
-        this.headerLength = (byte) (5 + optionsLength);
-
-        this.totalLength = (short) (this.headerLength * 4 + ((payloadData == null) ? 0
-                : payloadData.length));
+        byte headerLength = (byte) (5 + optionsLength);
+        short totalLength = (short) (headerLength * 4 + this.getPayloadLength());
 
-        byte[] data = new byte[this.totalLength];
-        ByteBuffer bb = ByteBuffer.wrap(data);
+        // A checksum kept up to date incrementally stays valid unless the
+        // lengths it covers change
+        if (headerLength != this.headerLength || totalLength != this.totalLength)
+            this.checksum = 0;
+        this.headerLength = headerLength;
+        this.totalLength = totalLength;
 
         bb.put((byte) (((this.version & 0xf) << 4) | (this.headerLength & 0xf)));
         bb.put(this.diffServ);
@@ -316,22 +368,31 @@ public class IPv4 extends BasePacket {
         bb.putInt(this.destinationAddress);
         if (this.options != null)
             bb.put(this.options);
-        if (payloadData != null)
-            bb.put(payloadData);
+        this.serializePayload(bb);
+
+        // the payload sets the protocol as it is serialized
+        bb.put(start + 9, this.protocol);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
             int accumulation = 0;
             for (int i = 0; i < this.headerLength * 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
+                accumulation += 0xffff & bb.getShort(start + i * 2);
             }
             accumulation = ((accumulation >> 16) & 0xffff)
                     + (accumulation & 0xffff);
+            accumulation += accumulation >> 16;
             this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(10, this.checksum);
+            bb.putShort(start + 10, this.checksum);
         }
-        return data;
+    }
+
+    @Override
+    public int getSerializedLength() {
+        int optionsLength = 0;
+        if (this.options != null)
+            optionsLength = this.options.length / 4;
+        return (5 + optionsLength) * 4 + this.getPayloadLength();
     }
 
     @Override
@@ -360,19 +421,7 @@ public class IPv4 extends BasePacket {
             bb.get(this.options);
         }
 
-        IPacket payload;
-        if (IPv4.protocolClassMap.containsKey(this.protocol)) {
-            Class<? extends IPacket> clazz = IPv4.protocolClassMap.get(this.protocol);
-            try {
-                payload = clazz.newInstance();
-            } catch (Exception e) {
-                throw new RuntimeException("Error parsing payload for IPv4 packet", e);
-            }
-        } else {
-            payload = new Data();
-        }
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        this.setPayloadData(data, bb.position(), bb.limit()-bb.position());
 
         if (this.totalLength != length)
             this.isTruncated = true;
@@ -382,6 +431,15 @@ public class IPv4 extends BasePacket {
         return this;
     }
 
+    @Override
+    protected IPacket decodePayload(byte[] data, int offset, int length) {
+        IPacket payload = IPv4.protocolDecoders.create(this.protocol);
+        if (payload == null) {
+            payload = new Data();
+        }
+        return payload.deserialize(data, offset, length);
+    }
+
     /**
      * Accepts an IPv4 address of the form xxx.xxx.xxx.xxx, ie 192.168.0.1 and
      * returns the corresponding 32 bit integer.
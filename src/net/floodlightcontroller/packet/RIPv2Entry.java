@@ -76,15 +76,18 @@ public class RIPv2Entry
     {
 		int length = 2*2 + 4*4;
 		byte[] data = new byte[length];
-		ByteBuffer bb = ByteBuffer.wrap(data);
+		this.serialize(ByteBuffer.wrap(data));
+		return data;
+	}
 
+	public void serialize(ByteBuffer bb) 
+	{
 		bb.putShort(this.addressFamily);
 		bb.putShort(this.routeTag);
         bb.putInt(this.address);
         bb.putInt(this.subnetMask);
         bb.putInt(this.nextHopAddress);
         bb.putInt(this.metric);
-		return data;
 	}
 
 	public RIPv2Entry deserialize(byte[] data, int offset, int length) 
@@ -150,20 +150,12 @@ public class TCP extends BasePacket {
      *      -checksum : 0
      *      -length : 0
      */
-    public byte[] serialize() {
+    public void serialize(ByteBuffer bb) {
+        int start = bb.position();
         int length;
         if (dataOffset == 0)
             dataOffset = 5;  // default header length
-        length = dataOffset << 2;
-        byte[] payloadData = null;
-        if (payload != null) {
-            payload.setParent(this);
-            payloadData = payload.serialize();
-            length += payloadData.length;
-        }
-
-        byte[] data = new byte[length];
-        ByteBuffer bb = ByteBuffer.wrap(data);
+        length = (dataOffset << 2) + this.getPayloadLength();
 
         bb.putShort(this.sourcePort);
         bb.putShort(this.destinationPort);
@@ -180,15 +172,13 @@ public class TCP extends BasePacket {
             for (int i = 0; i < padding; i++)
                 bb.put((byte) 0);
         }
-        if (payloadData != null)
-            bb.put(payloadData);
+        this.serializePayload(bb);
 
         if (this.parent != null && this.parent instanceof IPv4)
             ((IPv4)this.parent).setProtocol(IPv4.PROTOCOL_TCP);
 
         // compute checksum if needed
         if (this.checksum == 0) {
-            bb.rewind();
             int accumulation = 0;
 
             // compute pseudo header mac
@@ -203,19 +193,24 @@ public class TCP extends BasePacket {
             }
 
             for (int i = 0; i < length / 2; ++i) {
-                accumulation += 0xffff & bb.getShort();
+                accumulation += 0xffff & bb.getShort(start + i * 2);
             }
             // pad to an even number of shorts
             if (length % 2 > 0) {
-                accumulation += (bb.get() & 0xff) << 8;
+                accumulation += (bb.get(start + length - 1) & 0xff) << 8;
             }
 
             accumulation = ((accumulation >> 16) & 0xffff)
                     + (accumulation & 0xffff);
             this.checksum = (short) (~accumulation & 0xffff);
-            bb.putShort(16, this.checksum);
+            bb.putShort(start + 16, this.checksum);
         }
-        return data;
+    }
+
+    @Override
+    public int getSerializedLength() {
+        return ((dataOffset == 0) ? 5 : dataOffset) * 4
+                + this.getPayloadLength();
     }
 
     /* (non-Javadoc)
@@ -282,9 +277,7 @@ public class TCP extends BasePacket {
             }
         }
         
-        this.payload = new Data();
-        this.payload = payload.deserialize(data, bb.position(), bb.limit()-bb.position());
-        this.payload.setParent(this);
+        this.setPayloadData(data, bb.position(), bb.limit()-bb.position());
         return this;
     }
 }